@@ -0,0 +1,22 @@
+package com.test.benchmark;
+
+import com.test.CrptApi;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+class Documents {
+
+    static CrptApi.ProductMadeInRussiaToSendInSalesDocument withProducts(int productsQuantity) {
+        LocalDate date = LocalDate.of(2024, 3, 15);
+        List<CrptApi.Product> products = new ArrayList<>(productsQuantity);
+        for (int i = 0; i < productsQuantity; i++) {
+            products.add(new CrptApi.Product("certificate", date, "CN-" + i, "7700000000", "7800000000", date,
+                    "6401100000", "0104600000000" + i, null));
+        }
+        return new CrptApi.ProductMadeInRussiaToSendInSalesDocument(new CrptApi.Description("7700000000"), "doc-" + productsQuantity,
+                "NEW", "LP_INTRODUCE_GOODS", false, "7700000000", "7700000000", "7800000000", date, "OWN_PRODUCTION",
+                products, date, null);
+    }
+}
@@ -0,0 +1,68 @@
+package com.test.benchmark;
+
+import com.test.CrptApi;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Timer;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RateLimiterBenchmark {
+
+    @Param({"fixedWindow", "gcra"})
+    public String limiter;
+
+    //a quota below the thread count makes threads park until a refund wakes them, unbounded never waits
+    @Param({"2147483647", "4"})
+    public int requestLimit;
+
+    private Timer timer;
+    private CrptApi.RateLimiter rateLimiter;
+
+    @Setup
+    public void setUp() {
+        timer = new Timer(true);
+        rateLimiter = limiter.equals("gcra")
+                ? new CrptApi.GcraRateLimiter(TimeUnit.SECONDS, requestLimit, requestLimit)
+                : new CrptApi.FixedWindowRateLimiter(TimeUnit.SECONDS, requestLimit, timer);
+    }
+
+    @TearDown
+    public void tearDown() {
+        timer.cancel();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void acquire_01_thread() {
+        acquireAndRefund();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void acquire_04_threads() {
+        acquireAndRefund();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void acquire_16_threads() {
+        acquireAndRefund();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void acquire_64_threads() {
+        acquireAndRefund();
+    }
+
+    private void acquireAndRefund() {
+        rateLimiter.acquire();
+        rateLimiter.refund();
+    }
+}
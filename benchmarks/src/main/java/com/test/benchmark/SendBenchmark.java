@@ -0,0 +1,95 @@
+package com.test.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.sun.net.httpserver.HttpServer;
+import com.test.CrptApi;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.util.Timer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+public class SendBenchmark {
+
+    private static final byte[] CREATED = "{\"value\":\"created\"}".getBytes();
+    //as many requests in flight as blocking keeps with its threads, but driven from a single thread
+    private static final int IN_FLIGHT = 16;
+
+    @Param({"1", "100"})
+    private int productsQuantity;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private Timer timer;
+    private CrptApi crptApi;
+    private CrptApi.ProductMadeInRussiaToSendInSalesDocument document;
+    private Semaphore inFlight;
+
+    @Setup
+    public void setUp() throws IOException {
+        serverExecutor = Executors.newFixedThreadPool(32);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.setExecutor(serverExecutor);
+        server.createContext("/", exchange -> {
+            try (InputStream body = exchange.getRequestBody()) {
+                body.transferTo(OutputStream.nullOutputStream());
+            }
+            exchange.sendResponseHeaders(200, CREATED.length);
+            exchange.getResponseBody().write(CREATED);
+            exchange.close();
+        });
+        server.start();
+
+        CrptApi.Configuration configuration = new CrptApi.Configuration();
+        configuration.setPushToSalesProductMadeInRussiaUri(URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/"));
+        timer = new Timer(true);
+        crptApi = new CrptApi(TimeUnit.SECONDS, Integer.MAX_VALUE, HttpClient.newHttpClient(),
+                new ObjectMapper().registerModule(new JavaTimeModule()), timer, configuration);
+        document = Documents.withProducts(productsQuantity);
+        inFlight = new Semaphore(IN_FLIGHT);
+    }
+
+    //requests still in flight would otherwise be counted in the next iteration
+    @TearDown(Level.Iteration)
+    public void awaitInFlight() {
+        inFlight.acquireUninterruptibly(IN_FLIGHT);
+        inFlight.release(IN_FLIGHT);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+        timer.cancel();
+    }
+
+    @Benchmark
+    public void blocking() {
+        crptApi.createDocumentToSendInSalesProductMadeInRussia(document, "token");
+    }
+
+    //each invocation waits only for a free slot, so up to IN_FLIGHT sends overlap instead of one at a time
+    @Benchmark
+    @Threads(1)
+    public void async() {
+        inFlight.acquireUninterruptibly();
+        crptApi.createDocumentToSendInSalesProductMadeInRussiaAsync(document, "token")
+                .whenComplete((response, failure) -> inFlight.release());
+    }
+}
@@ -0,0 +1,50 @@
+package com.test.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.test.CrptApi;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-XX:+UseParallelGC")
+public class SerializationBenchmark {
+
+    @Param({"1", "100", "10000"})
+    private int productsQuantity;
+
+    private CrptApi.ProductMadeInRussiaToSendInSalesDocument document;
+    private ObjectWriter reflectiveWriter;
+    private ObjectWriter specializedWriter;
+
+    @Setup
+    public void setUp() {
+        ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+        document = Documents.withProducts(productsQuantity);
+        reflectiveWriter = objectMapper.writerFor(CrptApi.ProductMadeInRussiaToSendInSalesDocument.class);
+        specializedWriter = CrptApi.DocumentJsonSerializer.writerFor(objectMapper);
+    }
+
+    @Benchmark
+    public void reflective() throws IOException {
+        reflectiveWriter.writeValue(OutputStream.nullOutputStream(), document);
+    }
+
+    @Benchmark
+    public void specialized() throws IOException {
+        specializedWriter.writeValue(OutputStream.nullOutputStream(), document);
+    }
+
+    @Benchmark
+    public String reflectiveToString() throws IOException {
+        return reflectiveWriter.writeValueAsString(document);
+    }
+}
@@ -1,58 +1,278 @@
 package com.test;
 
 import com.fasterxml.jackson.annotation.*;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteBufferFeeder;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationConfig;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.fasterxml.jackson.dataformat.csv.CsvFactory;
+import com.fasterxml.jackson.dataformat.csv.CsvParser;
+import com.fasterxml.jackson.dataformat.csv.CsvSchema;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.RandomAccess;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 public class CrptApi {
 
-    private volatile Integer requestLimit;
-    private volatile AtomicInteger requestCounter = new AtomicInteger(0);
+    private static final int MIN_SERIALIZED_PRODUCT_BYTES = 200;
+
+    private final RateLimiter rateLimiter;
+    private final Executor executor;
+    private final RequestTemplate requestTemplate;
+    private final DeduplicationCache deduplicationCache;
+    private final FairQueue fairQueue;
+    private final SendLimits limits;
+    private final int maxRetries;
+    private final long retryBackoffMillis;
+    private final long maxRetryBackoffMillis;
+    private final int compressionThresholdBytes;
+    private final DeflaterPool deflaterPool;
     private ObjectMapper objectMapper;
+    private ObjectWriter documentWriter;
+    private HttpResponse.BodyHandler<DocumentCreationResponse> documentCreationResponseHandler;
     private HttpClient client;
+    private final Metrics metrics = new Metrics();
 
     public CrptApi(TimeUnit timeUnit, Integer requestLimit, HttpClient client, ObjectMapper objectMapper, Timer timer) {
-        this.requestLimit = requestLimit;
+        this(timeUnit, requestLimit, client, objectMapper, timer, new Configuration());
+    }
+
+    public CrptApi(TimeUnit timeUnit, Integer requestLimit, HttpClient client, ObjectMapper objectMapper, Timer timer,
+                   Configuration configuration) {
+        this(new FixedWindowRateLimiter(timeUnit, requestLimit, timer), client, objectMapper, configuration);
+    }
+
+    public CrptApi(RateLimiter rateLimiter, HttpClient client, ObjectMapper objectMapper) {
+        this(rateLimiter, client, objectMapper, new Configuration());
+    }
+
+    public CrptApi(RateLimiter rateLimiter, HttpClient client, ObjectMapper objectMapper, Configuration configuration) {
+        this.rateLimiter = rateLimiter;
+        this.executor = configuration.getExecutor();
+        this.requestTemplate = RequestTemplate.json(configuration.getPushToSalesProductMadeInRussiaUri(), configuration.getRequestTimeoutMillis());
+        this.deduplicationCache = configuration.getDeduplicationCache();
+        this.fairQueue = configuration.getFairQueue();
+        if (fairQueue != null) {
+            fairQueue.bind(rateLimiter);
+        }
+        this.limits = new SendLimits(rateLimiter, configuration.getConcurrencyLimiter(), configuration.getCircuitBreaker());
+        this.maxRetries = configuration.getMaxRetries();
+        this.retryBackoffMillis = configuration.getRetryBackoffMillis();
+        this.maxRetryBackoffMillis = configuration.getMaxRetryBackoffMillis();
+        this.compressionThresholdBytes = configuration.getCompressionThresholdBytes();
+        this.deflaterPool = compressionThresholdBytes < 0 ? null : new DeflaterPool(configuration.getCompressionLevel(), Runtime.getRuntime().availableProcessors());
         this.client = client;
         this.objectMapper = objectMapper;
-        timer.scheduleAtFixedRate(resetRequestCounter(), 0, timeUnit.toMillis(1));
+        this.documentWriter = DocumentJsonSerializer.writerFor(objectMapper);
+        this.documentCreationResponseHandler = new JsonBodyHandler<>(objectMapper.readerFor(DocumentCreationResponse.class));
+    }
+
+    public HttpResponse<DocumentCreationResponse> createDocumentToSendInSalesProductMadeInRussia(ProductMadeInRussiaToSendInSalesDocument productMadeInRussiaToSendInSalesDocument, String signToken) {
+        return getResponse(createDocumentToSendInSalesProductMadeInRussiaAsync(productMadeInRussiaToSendInSalesDocument, signToken));
+    }
+
+    public CompletableFuture<HttpResponse<DocumentCreationResponse>> createDocumentToSendInSalesProductMadeInRussiaAsync(ProductMadeInRussiaToSendInSalesDocument productMadeInRussiaToSendInSalesDocument, String signToken) {
+        return createDocumentToSendInSalesProductMadeInRussiaAsync(productMadeInRussiaToSendInSalesDocument, signToken, RateLimiter.DEFAULT_PRIORITY, null);
+    }
+
+    //deadline is not required, a submission still waiting for a permit at its deadline fails with TimeoutException
+    public CompletableFuture<HttpResponse<DocumentCreationResponse>> createDocumentToSendInSalesProductMadeInRussiaAsync(ProductMadeInRussiaToSendInSalesDocument productMadeInRussiaToSendInSalesDocument, String signToken,
+                                                                                                                      int priority, Instant deadline) {
+        if (deduplicationCache == null) {
+            return createDocumentToSendInSalesProductMadeInRussiaAsync(productMadeInRussiaToSendInSalesDocument, signToken, priority, deadline, documentCreationResponseHandler);
+        }
+        return createDocumentToSendInSalesProductMadeInRussiaAsync(FrozenDocument.of(productMadeInRussiaToSendInSalesDocument), signToken, priority, deadline);
+    }
+
+    public HttpResponse<DocumentCreationResponse> createDocumentToSendInSalesProductMadeInRussia(FrozenDocument document, String signToken) {
+        return getResponse(createDocumentToSendInSalesProductMadeInRussiaAsync(document, signToken));
+    }
+
+    public CompletableFuture<HttpResponse<DocumentCreationResponse>> createDocumentToSendInSalesProductMadeInRussiaAsync(FrozenDocument document, String signToken) {
+        return createDocumentToSendInSalesProductMadeInRussiaAsync(document, signToken, RateLimiter.DEFAULT_PRIORITY, null);
+    }
+
+    public CompletableFuture<HttpResponse<DocumentCreationResponse>> createDocumentToSendInSalesProductMadeInRussiaAsync(FrozenDocument document, String signToken,
+                                                                                                                      int priority, Instant deadline) {
+        Supplier<CompletableFuture<HttpResponse<DocumentCreationResponse>>> sender = () -> {
+            try {
+                return sendWithRetries(makeDocumentRequest(requestTemplate, document.serialize(documentWriter), signToken), documentCreationResponseHandler, limits,
+                        tenantOf(document.getParticipantInn(), signToken), priority, toDeadlineMillis(deadline), 0);
+            } catch (JsonProcessingException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        };
+        return deduplicationCache == null ? sender.get() : deduplicationCache.submit(document, signToken, sender);
+    }
+
+    public <T> CompletableFuture<HttpResponse<T>> createDocumentToSendInSalesProductMadeInRussiaAsync(ProductMadeInRussiaToSendInSalesDocument productMadeInRussiaToSendInSalesDocument, String signToken,
+                                                                                                  HttpResponse.BodyHandler<T> responseBodyHandler) {
+        return createDocumentToSendInSalesProductMadeInRussiaAsync(productMadeInRussiaToSendInSalesDocument, signToken, RateLimiter.DEFAULT_PRIORITY, null, responseBodyHandler);
+    }
+
+    public <T> CompletableFuture<HttpResponse<T>> createDocumentToSendInSalesProductMadeInRussiaAsync(ProductMadeInRussiaToSendInSalesDocument productMadeInRussiaToSendInSalesDocument, String signToken,
+                                                                                                  int priority, Instant deadline, HttpResponse.BodyHandler<T> responseBodyHandler) {
+        return sendWithRetries(makeDocumentRequest(productMadeInRussiaToSendInSalesDocument, signToken), responseBodyHandler, limits,
+                tenantOf(productMadeInRussiaToSendInSalesDocument.getParticipantInn(), signToken), priority, toDeadlineMillis(deadline), 0);
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    private CompletableFuture<HttpResponse<DocumentCreationResponse>> sendSerializedDocumentAsync(byte[] body, String signToken) {
+        return checkLimitationAndSendRequest(makeDocumentRequest(requestTemplate, body, signToken), documentCreationResponseHandler, limits,
+                tenantOf(null, signToken), RateLimiter.DEFAULT_PRIORITY, RateLimiter.NO_DEADLINE);
     }
 
-    public void createDocumentToSendInSalesProductMadeInRussia(ProductMadeInRussiaToSendInSalesDocument productMadeInRussiaToSendInSalesDocument, String signToken) {
+    //documents sent through a DocumentDispatcher endpoint share this pipeline with their own template, writer and limits
+    private <T> CompletableFuture<HttpResponse<T>> sendDocumentAsync(RequestTemplate template, ObjectWriter writer, SendLimits limits, Object document,
+                                                                    String signToken, HttpResponse.BodyHandler<T> responseBodyHandler) {
+        HttpRequest request;
         try {
-            String body = objectMapper.writeValueAsString(productMadeInRussiaToSendInSalesDocument);
-            sendRequestAndGetResponse(makeSignedRequest(body, signToken));
+            request = makeDocumentRequest(template, writer, document, signToken);
         } catch (JsonProcessingException e) {
-            throw new RuntimeException(e);
+            return CompletableFuture.failedFuture(e);
+        }
+        String participantInn = document instanceof ProductMadeInRussiaToSendInSalesDocument productMadeInRussiaToSendInSalesDocument
+                ? productMadeInRussiaToSendInSalesDocument.getParticipantInn() : null;
+        return sendWithRetries(request, responseBodyHandler, limits, tenantOf(participantInn, signToken), RateLimiter.DEFAULT_PRIORITY, RateLimiter.NO_DEADLINE, 0);
+    }
+
+    private String tenantOf(String participantInn, String signToken) {
+        if (fairQueue == null) {
+            return null;
+        }
+        return fairQueue.getTenantKey() == FairQueue.TenantKey.PARTICIPANT_INN && participantInn != null ? participantInn : signToken;
+    }
+
+    private static long toDeadlineMillis(Instant deadline) {
+        return deadline == null ? RateLimiter.NO_DEADLINE : deadline.toEpochMilli();
+    }
+
+    private HttpRequest makeDocumentRequest(ProductMadeInRussiaToSendInSalesDocument productMadeInRussiaToSendInSalesDocument, String signToken) {
+        return makeDocumentRequest(requestTemplate, documentWriter, productMadeInRussiaToSendInSalesDocument, signToken);
+    }
+
+    //the streamed document is not measured before sending, so its size is estimated from a lower bound per product
+    private HttpRequest makeDocumentRequest(RequestTemplate template, ObjectWriter writer,
+                                            ProductMadeInRussiaToSendInSalesDocument productMadeInRussiaToSendInSalesDocument, String signToken) {
+        List<Product> products = productMadeInRussiaToSendInSalesDocument.getProducts();
+        boolean compressed = shouldCompress(products == null ? 0 : (long) products.size() * MIN_SERIALIZED_PRODUCT_BYTES);
+        return template.newRequest(new JsonBodyPublisher(writer, productMadeInRussiaToSendInSalesDocument,
+                compressed ? deflaterPool : null, metrics.getSerialization()::record), signToken, compressed);
+    }
+
+    //documents of other types have no such bound, so they are serialized up front when compression is enabled
+    private HttpRequest makeDocumentRequest(RequestTemplate template, ObjectWriter writer, Object document, String signToken) throws JsonProcessingException {
+        if (document instanceof ProductMadeInRussiaToSendInSalesDocument productMadeInRussiaToSendInSalesDocument) {
+            return makeDocumentRequest(template, writer, productMadeInRussiaToSendInSalesDocument, signToken);
+        }
+        if (deflaterPool == null) {
+            return template.newRequest(new JsonBodyPublisher(writer, document, metrics.getSerialization()::record), signToken, false);
         }
+        return makeDocumentRequest(template, writer.writeValueAsBytes(document), signToken);
+    }
+
+    private HttpRequest makeDocumentRequest(RequestTemplate template, byte[] body, String signToken) {
+        boolean compressed = shouldCompress(body.length);
+        return template.newRequest(compressed ? new JsonBodyPublisher(body, deflaterPool) : HttpRequest.BodyPublishers.ofByteArray(body),
+                signToken, compressed);
     }
 
-    private HttpRequest makeSignedRequest(String body, String signToken) {
-        return HttpRequest
-                .newBuilder(URI.create(ApiUriDictionary.PUSH_TO_SALES_PRODUCT_MADE_IN_RUSSIA_URI))
-                .header("Content-type", "Application/json")
-                .header("Authorization", "Bearer " + signToken)
-                .POST(HttpRequest.BodyPublishers.ofString(body))
-                .build();
+    private boolean shouldCompress(long estimatedBytes) {
+        return deflaterPool != null && estimatedBytes >= compressionThresholdBytes;
     }
 
-    private HttpResponse sendRequestAndGetResponse(HttpRequest request) {
+    private <T> HttpResponse<T> getResponse(CompletableFuture<HttpResponse<T>> response) {
         try {
-            return checkLimitationAndSendRequest(request).get();
+            return response.get();
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         } catch (ExecutionException e) {
@@ -60,34 +280,193 @@ public class CrptApi {
         }
     }
 
-    private CompletableFuture<HttpResponse> checkLimitationAndSendRequest(HttpRequest request) {
-        while (true) {
-            synchronized (requestCounter) {
-                if (requestCounter.get() < requestLimit) {
-                    requestCounter.incrementAndGet();
-                    return sendRequest(request);
-                }
+    //retries go back through the rate limiter, so they are paid for with the same quota as first attempts
+    //a retry that could not start before the deadline is not attempted, the throttled response is returned instead
+    private <T> CompletableFuture<HttpResponse<T>> sendWithRetries(HttpRequest request, HttpResponse.BodyHandler<T> responseBodyHandler, SendLimits limits,
+                                                                   String tenant, int priority, long deadlineMillis, int attempt) {
+        return checkLimitationAndSendRequest(request, responseBodyHandler, limits, tenant, priority, deadlineMillis).thenCompose(response -> {
+            if (!isThrottled(response) || attempt >= maxRetries) {
+                return CompletableFuture.completedFuture(response);
+            }
+            long delayMillis = Math.max(retryAfterMillis(response), backoffMillis(attempt));
+            if (System.currentTimeMillis() + delayMillis >= deadlineMillis) {
+                return CompletableFuture.completedFuture(response);
+            }
+            Executor delayed = CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS, Runnable::run);
+            return CompletableFuture.runAsync(() -> {}, delayed)
+                    .thenCompose(ignored -> sendWithRetries(request, responseBodyHandler, limits, tenant, priority, deadlineMillis, attempt + 1));
+        });
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> checkLimitationAndSendRequest(HttpRequest request, HttpResponse.BodyHandler<T> responseBodyHandler, SendLimits limits,
+                                                                                 String tenant, int priority, long deadlineMillis) {
+        if (limits.circuitBreaker != null && !limits.circuitBreaker.isCallPermitted()) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Circuit breaker is open"));
+        }
+        CompletableFuture<HttpResponse<T>> response;
+        if (executor == null) {
+            CompletableFuture<Void> permit = metrics.trackPermit(acquirePermit(limits, tenant, priority, deadlineMillis));
+            response = permit.thenCompose(granted -> sendThroughCircuitBreaker(limits, permit,
+                    () -> sendWithinConcurrencyLimit(request, responseBodyHandler, limits, permit)));
+        } else {
+            response = sendRequestOnExecutor(request, responseBodyHandler, limits, tenant, priority, deadlineMillis);
+        }
+        return response.thenApply(completed -> reportToRateLimiter(limits, completed));
+    }
+
+    //the breaker is asked again once the permit is granted, since it may have opened while the submission was queued
+    private <T> CompletableFuture<HttpResponse<T>> sendThroughCircuitBreaker(SendLimits limits, CompletableFuture<Void> permit,
+                                                                             Supplier<CompletableFuture<HttpResponse<T>>> sender) {
+        if (limits.circuitBreaker == null) {
+            return sender.get();
+        }
+        long call = limits.circuitBreaker.tryAcquire();
+        if (call == CircuitBreaker.REJECTED) {
+            limits.rateLimiter.refund(permit);
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Circuit breaker is open"));
+        }
+        return sender.get().whenComplete((response, throwable) -> reportToCircuitBreaker(limits.circuitBreaker, call, response, throwable));
+    }
+
+    //submissions that were turned away by the concurrency limit never reached the endpoint
+    private static void reportToCircuitBreaker(CircuitBreaker circuitBreaker, long call, HttpResponse<?> response, Throwable throwable) {
+        if (throwable == null) {
+            circuitBreaker.onResult(call, response.statusCode() >= 500);
+            return;
+        }
+        Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+        if (cause instanceof TimeoutException || cause instanceof RejectedExecutionException || cause instanceof CancellationException) {
+            circuitBreaker.onIgnored(call);
+        } else {
+            circuitBreaker.onResult(call, true);
+        }
+    }
+
+    //the fair queue is bound to the default rate limiter, endpoints with their own limiter are not queued by tenant
+    private CompletableFuture<Void> acquirePermit(SendLimits limits, String tenant, int priority, long deadlineMillis) {
+        return fairQueue == null || limits.rateLimiter != rateLimiter ? limits.rateLimiter.acquireAsync(priority, deadlineMillis) : fairQueue.acquireAsync(tenant, priority, deadlineMillis);
+    }
+
+    private <T> HttpResponse<T> reportToRateLimiter(SendLimits limits, HttpResponse<T> response) {
+        if (isThrottled(response)) {
+            metrics.requestRejected();
+            limits.rateLimiter.onRejected(retryAfterMillis(response));
+        } else {
+            limits.rateLimiter.onAccepted();
+        }
+        return response;
+    }
+
+    private static boolean isThrottled(HttpResponse<?> response) {
+        return response.statusCode() == 429 || response.statusCode() == 503;
+    }
+
+    private static long retryAfterMillis(HttpResponse<?> response) {
+        String retryAfter = response.headers().firstValue("Retry-After").orElse(null);
+        if (retryAfter == null) {
+            return 0;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+        } catch (NumberFormatException e) {
+            try {
+                long at = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                return Math.max(0, at - System.currentTimeMillis());
+            } catch (DateTimeParseException ignored) {
+                return 0;
             }
         }
     }
 
-    private CompletableFuture<HttpResponse> sendRequest(HttpRequest request) {
+    //full jitter: a uniformly random delay up to the exponential ceiling
+    private long backoffMillis(int attempt) {
+        long ceiling = Math.min(maxRetryBackoffMillis, retryBackoffMillis << Math.min(attempt, 30));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> sendRequestOnExecutor(HttpRequest request, HttpResponse.BodyHandler<T> responseBodyHandler, SendLimits limits,
+                                                                         String tenant, int priority, long deadlineMillis) {
         return CompletableFuture.supplyAsync(() -> {
+            CompletableFuture<Void> permit = metrics.trackPermit(acquirePermit(limits, tenant, priority, deadlineMillis));
             try {
-                System.err.println("Sent");
-                return client.send(request, HttpResponse.BodyHandlers.ofString());
-            } catch (IOException | InterruptedException e) {
+                limits.rateLimiter.await(permit);
+            } catch (InterruptedException e) {
                 throw new RuntimeException(e);
             }
+            return sendThroughCircuitBreaker(limits, permit, () -> sendBlocking(request, responseBodyHandler, limits, permit));
+        }, executor).thenCompose(Function.identity());
+    }
+
+    //runs on the executor, so the returned future is always already complete
+    private <T> CompletableFuture<HttpResponse<T>> sendBlocking(HttpRequest request, HttpResponse.BodyHandler<T> responseBodyHandler, SendLimits limits,
+                                                                CompletableFuture<Void> permit) {
+        try {
+            if (limits.concurrencyLimiter != null) {
+                awaitConcurrencySlot(limits, permit);
+            }
+        } catch (InterruptedException e) {
+            return CompletableFuture.failedFuture(new RuntimeException(e));
+        } catch (ExecutionException e) {
+            return CompletableFuture.failedFuture(e.getCause());
+        }
+        long startedAt = metrics.requestStarted();
+        try {
+            HttpResponse<T> response = client.send(request, responseBodyHandler);
+            metrics.requestFinished(startedAt, null);
+            releaseConcurrencySlot(limits, startedAt, null);
+            return CompletableFuture.completedFuture(response);
+        } catch (IOException | InterruptedException e) {
+            metrics.requestFinished(startedAt, e);
+            releaseConcurrencySlot(limits, startedAt, e);
+            return CompletableFuture.failedFuture(new RuntimeException(e));
+        }
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> sendWithinConcurrencyLimit(HttpRequest request, HttpResponse.BodyHandler<T> responseBodyHandler, SendLimits limits,
+                                                                              CompletableFuture<Void> permit) {
+        if (limits.concurrencyLimiter == null) {
+            return sendRequest(request, responseBodyHandler);
+        }
+        return acquireConcurrencySlot(limits, permit).thenCompose(slot -> {
+            long startedAt = System.nanoTime();
+            return sendRequest(request, responseBodyHandler).whenComplete((response, throwable) -> releaseConcurrencySlot(limits, startedAt, throwable));
         });
     }
 
-    private TimerTask resetRequestCounter() {
-        return new TimerTask() {
-            public void run() {
-                requestCounter.set(0);
+    //a submission turned away here has already been granted a rate permit, which is handed back
+    private CompletableFuture<Void> acquireConcurrencySlot(SendLimits limits, CompletableFuture<Void> permit) {
+        CompletableFuture<Void> slot = limits.concurrencyLimiter.acquireAsync();
+        if (slot.isCompletedExceptionally()) {
+            limits.rateLimiter.refund(permit);
+        }
+        return slot;
+    }
+
+    //an interrupted wait gives back both the rate permit and the slot, in case the slot was granted as the wait ended;
+    //the wait can outlast the permit's window, so the permit is refunded to the window it came from
+    private void awaitConcurrencySlot(SendLimits limits, CompletableFuture<Void> permit) throws InterruptedException, ExecutionException {
+        CompletableFuture<Void> slot = acquireConcurrencySlot(limits, permit);
+        try {
+            slot.get();
+        } catch (InterruptedException e) {
+            if (!slot.cancel(false) && !slot.isCompletedExceptionally()) {
+                limits.concurrencyLimiter.release(0, false);
             }
-        };
+            limits.rateLimiter.refund(permit);
+            throw e;
+        }
+    }
+
+    private void releaseConcurrencySlot(SendLimits limits, long startedAt, Throwable failure) {
+        if (limits.concurrencyLimiter != null) {
+            limits.concurrencyLimiter.release(System.nanoTime() - startedAt, failure != null);
+        }
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> sendRequest(HttpRequest request, HttpResponse.BodyHandler<T> responseBodyHandler) {
+        long startedAt = metrics.requestStarted();
+        return client.sendAsync(request, responseBodyHandler)
+                .whenComplete((response, throwable) -> metrics.requestFinished(startedAt, throwable));
     }
 
 
@@ -550,8 +929,3427 @@ public class CrptApi {
 
 
 
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class DocumentCreationResponse {
+
+        @JsonProperty("value")
+        private String value;//identifier of the created document, absent on errors
+
+        @JsonProperty("code")
+        private String code;
+
+        @JsonProperty("error_message")
+        private String errorMessage;
+
+        @JsonProperty("description")
+        private String description;
+
+
+
+        public DocumentCreationResponse() {
+        }
+
+        public DocumentCreationResponse(String value, String code, String errorMessage, String description) {
+            this.value = value;
+            this.code = code;
+            this.errorMessage = errorMessage;
+            this.description = description;
+        }
+
+
+
+        public String getValue() {
+            return value;
+        }
+
+        public void setValue(String value) {
+            this.value = value;
+        }
+
+        public String getCode() {
+            return code;
+        }
+
+        public void setCode(String code) {
+            this.code = code;
+        }
+
+        public String getErrorMessage() {
+            return errorMessage;
+        }
+
+        public void setErrorMessage(String errorMessage) {
+            this.errorMessage = errorMessage;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public void setDescription(String description) {
+            this.description = description;
+        }
+
+
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            DocumentCreationResponse that = (DocumentCreationResponse) o;
+            if (value != null ? !value.equals(that.value) : that.value != null) return false;
+            if (code != null ? !code.equals(that.code) : that.code != null) return false;
+            if (errorMessage != null ? !errorMessage.equals(that.errorMessage) : that.errorMessage != null) return false;
+            return description != null ? description.equals(that.description) : that.description == null;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = value != null ? value.hashCode() : 0;
+            result = 31 * result + (code != null ? code.hashCode() : 0);
+            result = 31 * result + (errorMessage != null ? errorMessage.hashCode() : 0);
+            result = 31 * result + (description != null ? description.hashCode() : 0);
+            return result;
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //a List<Product> stored by column: repeated strings are kept once in a dictionary and dates as epoch days,
+    //products are materialized only when read through the List interface
+    public static class ProductBatch extends AbstractList<Product> implements RandomAccess {
+
+        private static final int DEFAULT_CAPACITY = 16;
+        private static final int NULL_CODE = -1;
+        private static final int NULL_DATE = Integer.MIN_VALUE;
+
+        private final List<String> dictionary;
+        private final Map<String, Integer> codes;
+        private int size;
+        private int[] certificateDocuments;
+        private int[] certificateDocumentDates;
+        private int[] certificateDocumentNumbers;
+        private int[] ownerInns;
+        private int[] producerInns;
+        private int[] productionDates;
+        private int[] tnvedCodes;
+        private String[] uitCodes;//unique per product, so not worth a dictionary entry
+        private String[] uituCodes;
+
+
+
+        public ProductBatch() {
+            this(DEFAULT_CAPACITY);
+        }
+
+        public ProductBatch(int initialCapacity) {
+            int capacity = Math.max(1, initialCapacity);
+            this.dictionary = new ArrayList<>();
+            this.codes = new HashMap<>();
+            this.certificateDocuments = new int[capacity];
+            this.certificateDocumentDates = new int[capacity];
+            this.certificateDocumentNumbers = new int[capacity];
+            this.ownerInns = new int[capacity];
+            this.producerInns = new int[capacity];
+            this.productionDates = new int[capacity];
+            this.tnvedCodes = new int[capacity];
+            this.uitCodes = new String[capacity];
+            this.uituCodes = new String[capacity];
+        }
+
+        public ProductBatch(ProductBatch batch) {
+            this.dictionary = new ArrayList<>(batch.dictionary);
+            this.codes = new HashMap<>(batch.codes);
+            this.size = batch.size;
+            this.certificateDocuments = Arrays.copyOf(batch.certificateDocuments, batch.size);
+            this.certificateDocumentDates = Arrays.copyOf(batch.certificateDocumentDates, batch.size);
+            this.certificateDocumentNumbers = Arrays.copyOf(batch.certificateDocumentNumbers, batch.size);
+            this.ownerInns = Arrays.copyOf(batch.ownerInns, batch.size);
+            this.producerInns = Arrays.copyOf(batch.producerInns, batch.size);
+            this.productionDates = Arrays.copyOf(batch.productionDates, batch.size);
+            this.tnvedCodes = Arrays.copyOf(batch.tnvedCodes, batch.size);
+            this.uitCodes = Arrays.copyOf(batch.uitCodes, batch.size);
+            this.uituCodes = Arrays.copyOf(batch.uituCodes, batch.size);
+        }
+
+        public static ProductBatch of(Collection<Product> products) {
+            ProductBatch batch = new ProductBatch(products.size());
+            batch.addAll(products);
+            return batch;
+        }
+
+
+
+        //null products are not supported, there is no column to mark them;
+        //dates are checked before anything is stored, so a rejected product leaves the batch as it was
+        @Override
+        public boolean add(Product product) {
+            if (product == null) {
+                throw new NullPointerException("Product batches do not hold null products");
+            }
+            int certificateDocumentDate = encode(product.getCertificateDocumentDate());
+            int productionDate = encode(product.getProductionDate());
+            if (size == ownerInns.length) {
+                grow();
+            }
+            certificateDocuments[size] = encode(product.getCertificateDocument());
+            certificateDocumentDates[size] = certificateDocumentDate;
+            certificateDocumentNumbers[size] = encode(product.getCertificateDocumentNumber());
+            ownerInns[size] = encode(product.getOwnerInn());
+            producerInns[size] = encode(product.getProducerInn());
+            productionDates[size] = productionDate;
+            tnvedCodes[size] = encode(product.getTnvedCode());
+            uitCodes[size] = product.getUitCode();
+            uituCodes[size] = product.getUituCode();
+            size++;
+            modCount++;
+            return true;
+        }
+
+        @Override
+        public Product get(int index) {
+            Objects.checkIndex(index, size);
+            return new Product(getCertificateDocument(index), getCertificateDocumentDate(index), getCertificateDocumentNumber(index),
+                    getOwnerInn(index), getProducerInn(index), getProductionDate(index), getTnvedCode(index), getUitCode(index),
+                    getUituCode(index));
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void clear() {
+            size = 0;
+            dictionary.clear();
+            codes.clear();
+            Arrays.fill(uitCodes, null);
+            Arrays.fill(uituCodes, null);
+            modCount++;
+        }
+
+        public int getDictionarySize() {
+            return dictionary.size();
+        }
+
+        public String getCertificateDocument(int index) {
+            return decode(certificateDocuments[index]);
+        }
+
+        public LocalDate getCertificateDocumentDate(int index) {
+            return decodeDate(certificateDocumentDates[index]);
+        }
+
+        public String getCertificateDocumentNumber(int index) {
+            return decode(certificateDocumentNumbers[index]);
+        }
+
+        public String getOwnerInn(int index) {
+            return decode(ownerInns[index]);
+        }
+
+        public String getProducerInn(int index) {
+            return decode(producerInns[index]);
+        }
+
+        public LocalDate getProductionDate(int index) {
+            return decodeDate(productionDates[index]);
+        }
+
+        public String getTnvedCode(int index) {
+            return decode(tnvedCodes[index]);
+        }
+
+        public String getUitCode(int index) {
+            return uitCodes[index];
+        }
+
+        public String getUituCode(int index) {
+            return uituCodes[index];
+        }
+
+        private int encode(String value) {
+            if (value == null) {
+                return NULL_CODE;
+            }
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                dictionary.add(value);
+                codes.put(value, code);
+            }
+            return code;
+        }
+
+        //the lowest int marks null, so the column holds epoch days above it
+        private static int encode(LocalDate value) {
+            if (value == null) {
+                return NULL_DATE;
+            }
+            long epochDay = value.toEpochDay();
+            if (epochDay <= NULL_DATE || epochDay > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Date " + value + " is outside the range a product batch can store");
+            }
+            return (int) epochDay;
+        }
+
+        private String decode(int code) {
+            return code == NULL_CODE ? null : dictionary.get(code);
+        }
+
+        private static LocalDate decodeDate(int epochDay) {
+            return epochDay == NULL_DATE ? null : LocalDate.ofEpochDay(epochDay);
+        }
+
+        private void grow() {
+            int capacity = ownerInns.length + (ownerInns.length >> 1) + 1;
+            certificateDocuments = Arrays.copyOf(certificateDocuments, capacity);
+            certificateDocumentDates = Arrays.copyOf(certificateDocumentDates, capacity);
+            certificateDocumentNumbers = Arrays.copyOf(certificateDocumentNumbers, capacity);
+            ownerInns = Arrays.copyOf(ownerInns, capacity);
+            producerInns = Arrays.copyOf(producerInns, capacity);
+            productionDates = Arrays.copyOf(productionDates, capacity);
+            tnvedCodes = Arrays.copyOf(tnvedCodes, capacity);
+            uitCodes = Arrays.copyOf(uitCodes, capacity);
+            uituCodes = Arrays.copyOf(uituCodes, capacity);
+        }
+    }
+
+
+
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     public static class ApiUriDictionary {
         private static final String PUSH_TO_SALES_PRODUCT_MADE_IN_RUSSIA_URI = "https://postman-echo.com/post";
     }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    public static class Configuration {
+
+        private Executor executor;//not required, sends are chained on the permit future when absent
+
+        private URI pushToSalesProductMadeInRussiaUri = URI.create(ApiUriDictionary.PUSH_TO_SALES_PRODUCT_MADE_IN_RUSSIA_URI);
+
+        private ConcurrencyLimiter concurrencyLimiter;//not required, in-flight requests are bounded by the rate limit only when absent
+
+        private DeduplicationCache deduplicationCache;//not required, every submission is sent when absent
+
+        private FairQueue fairQueue;//not required, permits are granted without regard to tenants when absent
+
+        private CircuitBreaker circuitBreaker;//not required, requests are sent whatever the recent failure rate when absent
+
+        private long requestTimeoutMillis;//requests are bounded by the client's own timeouts only when zero
+
+        private int maxRetries;//429 and 503 responses are returned to the caller when zero
+
+        private long retryBackoffMillis = 200;
+
+        private long maxRetryBackoffMillis = 30_000;
+
+        private int compressionThresholdBytes = -1;//bodies are sent uncompressed when negative
+
+        private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+
+
+        public Configuration() {
+        }
+
+        public Configuration(Executor executor) {
+            this.executor = executor;
+        }
+
+        public static Configuration virtualThreadPerRequest() {
+            return new Configuration(Executors.newVirtualThreadPerTaskExecutor());
+        }
+
+
+
+        public Executor getExecutor() {
+            return executor;
+        }
+
+        public void setExecutor(Executor executor) {
+            this.executor = executor;
+        }
+
+        public URI getPushToSalesProductMadeInRussiaUri() {
+            return pushToSalesProductMadeInRussiaUri;
+        }
+
+        public void setPushToSalesProductMadeInRussiaUri(URI pushToSalesProductMadeInRussiaUri) {
+            this.pushToSalesProductMadeInRussiaUri = pushToSalesProductMadeInRussiaUri;
+        }
+
+        public ConcurrencyLimiter getConcurrencyLimiter() {
+            return concurrencyLimiter;
+        }
+
+        public void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+            this.concurrencyLimiter = concurrencyLimiter;
+        }
+
+        public DeduplicationCache getDeduplicationCache() {
+            return deduplicationCache;
+        }
+
+        public void setDeduplicationCache(DeduplicationCache deduplicationCache) {
+            this.deduplicationCache = deduplicationCache;
+        }
+
+        public FairQueue getFairQueue() {
+            return fairQueue;
+        }
+
+        public void setFairQueue(FairQueue fairQueue) {
+            this.fairQueue = fairQueue;
+        }
+
+        public CircuitBreaker getCircuitBreaker() {
+            return circuitBreaker;
+        }
+
+        public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+            this.circuitBreaker = circuitBreaker;
+        }
+
+        public long getRequestTimeoutMillis() {
+            return requestTimeoutMillis;
+        }
+
+        public void setRequestTimeoutMillis(long requestTimeoutMillis) {
+            this.requestTimeoutMillis = requestTimeoutMillis;
+        }
+
+        public int getMaxRetries() {
+            return maxRetries;
+        }
+
+        public void setMaxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+        }
+
+        public long getRetryBackoffMillis() {
+            return retryBackoffMillis;
+        }
+
+        public void setRetryBackoffMillis(long retryBackoffMillis) {
+            this.retryBackoffMillis = retryBackoffMillis;
+        }
+
+        public long getMaxRetryBackoffMillis() {
+            return maxRetryBackoffMillis;
+        }
+
+        public void setMaxRetryBackoffMillis(long maxRetryBackoffMillis) {
+            this.maxRetryBackoffMillis = maxRetryBackoffMillis;
+        }
+
+        public int getCompressionThresholdBytes() {
+            return compressionThresholdBytes;
+        }
+
+        public void setCompressionThresholdBytes(int compressionThresholdBytes) {
+            this.compressionThresholdBytes = compressionThresholdBytes;
+        }
+
+        public int getCompressionLevel() {
+            return compressionLevel;
+        }
+
+        public void setCompressionLevel(int compressionLevel) {
+            this.compressionLevel = compressionLevel;
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //the URI, static headers and timeout of an endpoint are fixed once, each request only copies them and adds its own
+    public static class RequestTemplate {
+
+        private final URI uri;
+        private final long timeoutMillis;
+        private final HttpRequest.Builder builder;
+
+
+
+        public RequestTemplate(URI uri, Map<String, String> headers, long timeoutMillis) {
+            HttpRequest.Builder builder = HttpRequest.newBuilder(uri);
+            headers.forEach(builder::header);
+            if (timeoutMillis > 0) {
+                builder.timeout(Duration.ofMillis(timeoutMillis));
+            }
+            this.uri = uri;
+            this.timeoutMillis = timeoutMillis;
+            this.builder = builder;
+        }
+
+        public static RequestTemplate json(URI uri, long timeoutMillis) {
+            return new RequestTemplate(uri, Map.of("Content-type", "Application/json"), timeoutMillis);
+        }
+
+
+
+        public URI getUri() {
+            return uri;
+        }
+
+        public long getTimeoutMillis() {
+            return timeoutMillis;
+        }
+
+        //copy only reads the template builder, which is never changed after construction, so callers can share it
+        public HttpRequest newRequest(HttpRequest.BodyPublisher body, String signToken, boolean compressed) {
+            HttpRequest.Builder request = builder.copy().header("Authorization", "Bearer " + signToken);
+            if (compressed) {
+                request.header("Content-Encoding", "gzip");
+            }
+            return request.POST(body).build();
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //vegas-style limit on requests in flight: the limit grows while the observed round trip stays close to the fastest
+    //one seen and shrinks once requests start queueing on the server side
+    public static class ConcurrencyLimiter {
+
+        private static final int MIN_RTT_SAMPLES = 1000;
+
+        private final int minLimit;
+        private final int maxLimit;
+        private final int maxQueueSize;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Queue<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+        private double limit;
+        private int inFlight;
+        private long minRttNanos = Long.MAX_VALUE;
+        private int samplesSinceMinRttReset;
+
+
+
+        public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, int maxQueueSize) {
+            this.limit = initialLimit;
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.maxQueueSize = maxQueueSize;
+        }
+
+
+
+        public CompletableFuture<Void> acquireAsync() {
+            lock.lock();
+            try {
+                while (!waiters.isEmpty() && waiters.peek().isDone()) {
+                    waiters.poll();
+                }
+                if (waiters.isEmpty() && inFlight < (int) limit) {
+                    inFlight++;
+                    return CompletableFuture.completedFuture(null);
+                }
+                if (waiters.size() >= maxQueueSize) {
+                    return CompletableFuture.failedFuture(new RejectedExecutionException(
+                            "Concurrency limit of " + (int) limit + " reached and " + waiters.size() + " requests are queued"));
+                }
+                CompletableFuture<Void> slot = new CompletableFuture<>();
+                waiters.add(slot);
+                return slot;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void release(long rttNanos, boolean dropped) {
+            List<CompletableFuture<Void>> granted = new ArrayList<>();
+            lock.lock();
+            try {
+                int inFlightAtRelease = inFlight;
+                inFlight--;
+                if (dropped) {
+                    limit = Math.max(minLimit, limit / 2);
+                } else {
+                    update(rttNanos, inFlightAtRelease);
+                }
+                while (!waiters.isEmpty() && inFlight < (int) limit) {
+                    CompletableFuture<Void> slot = waiters.poll();
+                    if (!slot.isDone()) {
+                        inFlight++;
+                        granted.add(slot);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            for (CompletableFuture<Void> slot : granted) {
+                if (!slot.complete(null)) {
+                    release(0, false);
+                }
+            }
+        }
+
+        public int getLimit() {
+            lock.lock();
+            try {
+                return (int) limit;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void update(long rttNanos, int inFlightAtRelease) {
+            if (rttNanos <= 0) {
+                return;
+            }
+            if (++samplesSinceMinRttReset >= MIN_RTT_SAMPLES) {
+                samplesSinceMinRttReset = 0;
+                minRttNanos = rttNanos;
+            }
+            minRttNanos = Math.min(minRttNanos, rttNanos);
+            //an application-limited sample says nothing about how much more the server could take
+            if (inFlightAtRelease * 2 < limit) {
+                return;
+            }
+            double queued = limit * (1 - (double) minRttNanos / rttNanos);
+            double step = Math.max(1, Math.log10(limit));
+            if (queued < 3 * step) {
+                limit = Math.min(maxLimit, limit + step);
+            } else if (queued > 6 * step) {
+                limit = Math.max(minLimit, limit - step);
+            }
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //fails calls fast while the endpoint keeps failing; the state is swapped by compare-and-set, so no caller ever blocks on it
+    public static class CircuitBreaker {
+
+        public static final long REJECTED = -1;
+
+        private final double failureRateThreshold;
+        private final int minimumCalls;
+        private final long windowNanos;
+        private final long openNanos;
+        private final int halfOpenProbes;
+        private final AtomicReference<Circuit> circuit;
+
+
+
+        //opens once at least minimumCalls calls in a window fail at failureRateThreshold or more, and after openDuration
+        //lets halfOpenProbes calls through, closing again only if all of them succeed
+        public CircuitBreaker(double failureRateThreshold, int minimumCalls, long window, long openDuration, TimeUnit timeUnit,
+                              int halfOpenProbes) {
+            this.failureRateThreshold = failureRateThreshold;
+            this.minimumCalls = minimumCalls;
+            this.windowNanos = timeUnit.toNanos(window);
+            this.openNanos = timeUnit.toNanos(openDuration);
+            this.halfOpenProbes = halfOpenProbes;
+            this.circuit = new AtomicReference<>(new Circuit(State.CLOSED, 0, System.nanoTime(), 0, 0));
+        }
+
+
+
+        //a check that takes no probe, for callers that must still wait before they can call tryAcquire
+        public boolean isCallPermitted() {
+            Circuit current = circuit.get();
+            switch (current.state) {
+                case OPEN:
+                    return System.nanoTime() - current.since >= openNanos;
+                case HALF_OPEN:
+                    return current.calls < halfOpenProbes;
+                default:
+                    return true;
+            }
+        }
+
+        //returns the generation of the circuit the call was let into, to be passed back with its result, or REJECTED
+        public long tryAcquire() {
+            while (true) {
+                Circuit current = circuit.get();
+                switch (current.state) {
+                    case CLOSED:
+                        return current.generation;
+                    case OPEN:
+                        long now = System.nanoTime();
+                        if (now - current.since < openNanos) {
+                            return REJECTED;
+                        }
+                        Circuit probing = new Circuit(State.HALF_OPEN, current.generation + 1, now, 1, 0);
+                        if (circuit.compareAndSet(current, probing)) {
+                            return probing.generation;
+                        }
+                        break;
+                    case HALF_OPEN:
+                        if (current.calls >= halfOpenProbes) {
+                            return REJECTED;
+                        }
+                        if (circuit.compareAndSet(current, new Circuit(State.HALF_OPEN, current.generation, current.since, current.calls + 1, current.failures))) {
+                            return current.generation;
+                        }
+                        break;
+                }
+            }
+        }
+
+        //results of calls let into an earlier generation are dropped, so a slow call started while closed is never
+        //taken for a probe and one started before the circuit opened never counts against it
+        public void onResult(long call, boolean failed) {
+            while (true) {
+                Circuit current = circuit.get();
+                if (current.generation != call) {
+                    return;
+                }
+                long now = System.nanoTime();
+                Circuit next;
+                switch (current.state) {
+                    case CLOSED:
+                        boolean expired = now - current.since >= windowNanos;
+                        long since = expired ? now : current.since;
+                        int calls = (expired ? 0 : current.calls) + 1;
+                        int failures = (expired ? 0 : current.failures) + (failed ? 1 : 0);
+                        next = calls >= minimumCalls && failures >= failureRateThreshold * calls
+                                ? new Circuit(State.OPEN, current.generation + 1, now, 0, 0)
+                                : new Circuit(State.CLOSED, current.generation, since, calls, failures);
+                        break;
+                    case HALF_OPEN:
+                        if (failed) {
+                            next = new Circuit(State.OPEN, current.generation + 1, now, 0, 0);
+                        } else if (current.failures + 1 >= halfOpenProbes) {
+                            next = new Circuit(State.CLOSED, current.generation + 1, now, 0, 0);
+                        } else {
+                            //failures counts the successful probes while half-open
+                            next = new Circuit(State.HALF_OPEN, current.generation, current.since, current.calls, current.failures + 1);
+                        }
+                        break;
+                    default:
+                        return;
+                }
+                if (circuit.compareAndSet(current, next)) {
+                    return;
+                }
+            }
+        }
+
+        //for a call that was let through but never reached the endpoint, so that its probe can be used by another call
+        public void onIgnored(long call) {
+            while (true) {
+                Circuit current = circuit.get();
+                if (current.generation != call || current.state != State.HALF_OPEN || current.calls == 0) {
+                    return;
+                }
+                if (circuit.compareAndSet(current, new Circuit(State.HALF_OPEN, current.generation, current.since, current.calls - 1, current.failures))) {
+                    return;
+                }
+            }
+        }
+
+        public State getState() {
+            return circuit.get().state;
+        }
+
+
+
+        public enum State {
+            CLOSED,
+            OPEN,
+            HALF_OPEN
+        }
+
+        private static class Circuit {
+
+            private final State state;
+            private final long generation;//bumped on every change of state
+            private final long since;
+            private final int calls;
+            private final int failures;
+
+            private Circuit(State state, long generation, long since, int calls, int failures) {
+                this.state = state;
+                this.generation = generation;
+                this.since = since;
+                this.calls = calls;
+                this.failures = failures;
+            }
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    public static class FairQueue {
+
+        private final TenantKey tenantKey;
+        private final long quotaWindowMillis;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Map<String, Tenant> tenants = new HashMap<>();
+        private final Deque<Tenant> active = new ArrayDeque<>();
+        private RateLimiter rateLimiter;
+        private boolean permitPending;
+        private long wakeUpScheduledForWindow = -1;
+        private long waiterSequence;
+
+
+
+        //quotas are counted per window of quotaTimeUnit, tenants without a quota share whatever the global limit leaves
+        public FairQueue(TenantKey tenantKey, TimeUnit quotaTimeUnit) {
+            this.tenantKey = tenantKey;
+            this.quotaWindowMillis = quotaTimeUnit.toMillis(1);
+        }
+
+
+
+        public TenantKey getTenantKey() {
+            return tenantKey;
+        }
+
+        //a tenant with weight n is granted up to n permits per round, the default is 1
+        public void setWeight(String tenant, int weight) {
+            lock.lock();
+            try {
+                tenant(tenant).weight = weight;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void setQuota(String tenant, int permitsPerWindow) {
+            lock.lock();
+            try {
+                tenant(tenant).quota = permitsPerWindow;
+            } finally {
+                lock.unlock();
+            }
+            pump();
+        }
+
+        public int getQueuedCount(String tenant) {
+            lock.lock();
+            try {
+                Tenant queue = tenants.get(tenant);
+                return queue == null ? 0 : queue.waiters.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int getTenantCount() {
+            lock.lock();
+            try {
+                return tenants.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //global permits are requested one at a time and handed to tenants in deficit round robin order
+        public CompletableFuture<Void> acquireAsync(String tenant, int priority, long deadlineMillis) {
+            CompletableFuture<Void> permit = new WindowPermit();
+            lock.lock();
+            try {
+                long now = System.currentTimeMillis();
+                if (now >= deadlineMillis) {
+                    return CompletableFuture.failedFuture(new TimeoutException("Deadline passed before a permit was granted"));
+                }
+                Tenant queue = tenant(tenant);
+                queue.waiters.add(new Waiter(permit, priority, deadlineMillis, waiterSequence++));
+                if (!queue.active) {
+                    queue.active = true;
+                    active.addLast(queue);
+                }
+                if (deadlineMillis != RateLimiter.NO_DEADLINE) {
+                    permit.orTimeout(deadlineMillis - now, TimeUnit.MILLISECONDS);
+                }
+            } finally {
+                lock.unlock();
+            }
+            pump();
+            return permit;
+        }
+
+        void bind(RateLimiter rateLimiter) {
+            lock.lock();
+            try {
+                if (this.rateLimiter != null && this.rateLimiter != rateLimiter) {
+                    throw new IllegalStateException("Fair queue is already used with another rate limiter");
+                }
+                this.rateLimiter = rateLimiter;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private Tenant tenant(String tenant) {
+            return tenants.computeIfAbsent(tenant, Tenant::new);
+        }
+
+        private void pump() {
+            while (true) {
+                lock.lock();
+                try {
+                    if (permitPending || rateLimiter == null || !hasEligible(currentWindow())) {
+                        return;
+                    }
+                    permitPending = true;
+                } finally {
+                    lock.unlock();
+                }
+                CompletableFuture<Void> permit = rateLimiter.acquireAsync();
+                if (!permit.isDone()) {
+                    permit.whenComplete((ignored, throwable) -> {
+                        dispatch(permit, throwable);
+                        pump();
+                    });
+                    return;
+                }
+                Throwable failure = null;
+                try {
+                    permit.join();
+                } catch (CompletionException | CancellationException e) {
+                    failure = e;
+                }
+                dispatch(permit, failure);
+            }
+        }
+
+        //a global permit nobody can use any more is handed back to the rate limiter; the tenant's permit takes over its
+        //window, so that a later refund of it goes back to the window the global permit came from
+        private void dispatch(CompletableFuture<Void> permit, Throwable failure) {
+            CompletableFuture<Void> granted;
+            lock.lock();
+            try {
+                permitPending = false;
+                granted = next(currentWindow());
+            } finally {
+                lock.unlock();
+            }
+            if (failure != null) {
+                if (granted != null) {
+                    granted.completeExceptionally(failure);
+                }
+            } else {
+                if (granted instanceof WindowPermit tenantPermit && permit instanceof WindowPermit globalPermit) {
+                    tenantPermit.window = globalPermit.window;
+                }
+                if (granted == null || !granted.complete(null)) {
+                    rateLimiter.refund(permit);
+                }
+            }
+        }
+
+        private CompletableFuture<Void> next(long window) {
+            int skipped = 0;
+            while (!active.isEmpty() && skipped < active.size()) {
+                Tenant queue = active.peekFirst();
+                if (!queue.hasWaiting()) {
+                    active.pollFirst();
+                    deactivate(queue);
+                } else if (queue.isOverQuota(window)) {
+                    active.addLast(active.pollFirst());
+                    queue.deficit = 0;
+                    skipped++;
+                } else {
+                    if (queue.deficit <= 0) {
+                        queue.deficit = queue.weight;
+                    }
+                    queue.deficit--;
+                    queue.consume(window);
+                    CompletableFuture<Void> permit = queue.waiters.poll().permit;
+                    if (queue.deficit <= 0) {
+                        active.addLast(active.pollFirst());
+                    }
+                    return permit;
+                }
+            }
+            return null;
+        }
+
+        private boolean hasEligible(long window) {
+            boolean overQuota = false;
+            for (Iterator<Tenant> iterator = active.iterator(); iterator.hasNext(); ) {
+                Tenant queue = iterator.next();
+                if (!queue.hasWaiting()) {
+                    iterator.remove();
+                    deactivate(queue);
+                } else if (!queue.isOverQuota(window)) {
+                    return true;
+                } else {
+                    overQuota = true;
+                }
+            }
+            if (overQuota && wakeUpScheduledForWindow != window) {
+                wakeUpScheduledForWindow = window;
+                long delayMillis = (window + 1) * quotaWindowMillis - System.currentTimeMillis();
+                CompletableFuture.delayedExecutor(Math.max(0, delayMillis), TimeUnit.MILLISECONDS).execute(this::pump);
+            }
+            return false;
+        }
+
+        //tenants are keyed by sign token by default and tokens rotate, so an idle tenant is dropped unless it was configured
+        private void deactivate(Tenant queue) {
+            queue.active = false;
+            queue.deficit = 0;
+            if (queue.weight == 1 && queue.quota < 0) {
+                tenants.remove(queue.key, queue);
+            }
+        }
+
+        private long currentWindow() {
+            return System.currentTimeMillis() / quotaWindowMillis;
+        }
+
+
+
+        public enum TenantKey {
+            SIGN_TOKEN,
+            PARTICIPANT_INN//falls back to the sign token when the INN is not known, e.g. for documents replayed from an outbox
+        }
+
+        private static class Tenant {
+
+            private final String key;
+            private final Queue<Waiter> waiters = new PriorityQueue<>();
+            private int weight = 1;
+            private int quota = -1;
+            private int deficit;
+            private long window = -1;
+            private int used;
+            private boolean active;
+
+            private Tenant(String key) {
+                this.key = key;
+            }
+
+            //waiters that timed out or were cancelled are dropped here, so they never take a permit
+            private boolean hasWaiting() {
+                while (!waiters.isEmpty() && waiters.peek().permit.isDone()) {
+                    waiters.poll();
+                }
+                return !waiters.isEmpty();
+            }
+
+            private boolean isOverQuota(long currentWindow) {
+                return quota >= 0 && window == currentWindow && used >= quota;
+            }
+
+            private void consume(long currentWindow) {
+                if (window != currentWindow) {
+                    window = currentWindow;
+                    used = 0;
+                }
+                used++;
+            }
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    public static class Metrics {
+
+        private final LatencyHistogram permitWait = new LatencyHistogram();
+        private final LatencyHistogram serialization = new LatencyHistogram();
+        private final LatencyHistogram roundTrip = new LatencyHistogram();
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder throttled = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder inFlight = new LongAdder();
+        private final LongAdder queueDepth = new LongAdder();
+
+
+
+        public LatencyHistogram getPermitWait() {
+            return permitWait;
+        }
+
+        public LatencyHistogram getSerialization() {
+            return serialization;
+        }
+
+        public LatencyHistogram getRoundTrip() {
+            return roundTrip;
+        }
+
+        public Snapshot snapshot() {
+            return new Snapshot(permitWait.snapshot(), serialization.snapshot(), roundTrip.snapshot(), sent.sum(), failed.sum(),
+                    throttled.sum(), rejected.sum(), inFlight.sum(), queueDepth.sum());
+        }
+
+        public void report(Timer timer, long period, TimeUnit timeUnit, Consumer<Snapshot> reporter) {
+            timer.scheduleAtFixedRate(new TimerTask() {
+                public void run() {
+                    reporter.accept(snapshot());
+                }
+            }, timeUnit.toMillis(period), timeUnit.toMillis(period));
+        }
+
+
+
+        CompletableFuture<Void> trackPermit(CompletableFuture<Void> permit) {
+            if (permit.isDone()) {
+                permitWait.record(0);
+                return permit;
+            }
+            long requestedAt = System.nanoTime();
+            throttled.increment();
+            queueDepth.increment();
+            permit.whenComplete((ignored, throwable) -> {
+                queueDepth.decrement();
+                permitWait.record(System.nanoTime() - requestedAt);
+            });
+            return permit;
+        }
+
+        long requestStarted() {
+            inFlight.increment();
+            return System.nanoTime();
+        }
+
+        void requestRejected() {
+            rejected.increment();
+        }
+
+        void requestFinished(long startedAt, Throwable failure) {
+            inFlight.decrement();
+            roundTrip.record(System.nanoTime() - startedAt);
+            if (failure == null) {
+                sent.increment();
+            } else {
+                failed.increment();
+            }
+        }
+
+
+
+        public static class Snapshot {
+
+            private final LatencyHistogram.Snapshot permitWait;
+            private final LatencyHistogram.Snapshot serialization;
+            private final LatencyHistogram.Snapshot roundTrip;
+            private final long sent;
+            private final long failed;
+            private final long throttled;
+            private final long rejected;
+            private final long inFlight;
+            private final long queueDepth;
+
+            public Snapshot(LatencyHistogram.Snapshot permitWait, LatencyHistogram.Snapshot serialization,
+                            LatencyHistogram.Snapshot roundTrip, long sent, long failed, long throttled, long rejected,
+                            long inFlight, long queueDepth) {
+                this.permitWait = permitWait;
+                this.serialization = serialization;
+                this.roundTrip = roundTrip;
+                this.sent = sent;
+                this.failed = failed;
+                this.throttled = throttled;
+                this.rejected = rejected;
+                this.inFlight = inFlight;
+                this.queueDepth = queueDepth;
+            }
+
+            public LatencyHistogram.Snapshot getPermitWait() {
+                return permitWait;
+            }
+
+            public LatencyHistogram.Snapshot getSerialization() {
+                return serialization;
+            }
+
+            public LatencyHistogram.Snapshot getRoundTrip() {
+                return roundTrip;
+            }
+
+            public long getSent() {
+                return sent;
+            }
+
+            public long getFailed() {
+                return failed;
+            }
+
+            public long getThrottled() {
+                return throttled;
+            }
+
+            public long getRejected() {
+                return rejected;
+            }
+
+            public long getInFlight() {
+                return inFlight;
+            }
+
+            public long getQueueDepth() {
+                return queueDepth;
+            }
+
+            @Override
+            public String toString() {
+                return "sent=" + sent + ", failed=" + failed + ", throttled=" + throttled + ", rejected=" + rejected + ", inFlight=" + inFlight
+                        + ", queueDepth=" + queueDepth + ", permitWait=[" + permitWait + "], serialization=[" + serialization
+                        + "], roundTrip=[" + roundTrip + "]";
+            }
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //log-linear buckets with 8 sub-buckets per power of two, so any recorded value is reported within 12.5%
+    public static class LatencyHistogram {
+
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray((Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+
+
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            counts.incrementAndGet(bucketOf(value));
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        public Snapshot snapshot() {
+            long[] buckets = new long[counts.length()];
+            long count = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = counts.get(i);
+                count += buckets[i];
+            }
+            return new Snapshot(buckets, count, sum.sum(), max.get());
+        }
+
+        private static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+        }
+
+        private static long upperBoundOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+            return ((subBucket + 1) << shift) - 1;
+        }
+
+
+
+        public static class Snapshot {
+
+            private final long[] buckets;
+            private final long count;
+            private final long sum;
+            private final long max;
+
+            private Snapshot(long[] buckets, long count, long sum, long max) {
+                this.buckets = buckets;
+                this.count = count;
+                this.sum = sum;
+                this.max = max;
+            }
+
+            public long getCount() {
+                return count;
+            }
+
+            public long getMax() {
+                return max;
+            }
+
+            public double getMean() {
+                return count == 0 ? 0 : (double) sum / count;
+            }
+
+            public long getPercentile(double percentile) {
+                long rank = (long) Math.ceil(percentile / 100 * count);
+                long seen = 0;
+                for (int i = 0; i < buckets.length; i++) {
+                    seen += buckets[i];
+                    if (seen >= rank && seen > 0) {
+                        return Math.min(upperBoundOf(i), max);
+                    }
+                }
+                return 0;
+            }
+
+            @Override
+            public String toString() {
+                return "count=" + count + ", mean=" + (long) getMean() + "ns, p50=" + getPercentile(50) + "ns, p99="
+                        + getPercentile(99) + "ns, max=" + max + "ns";
+            }
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //one entry per document type, each with its own endpoint, writer and limits, all sending through the pipeline of one CrptApi
+    public static class DocumentDispatcher {
+
+        private final CrptApi crptApi;
+        private final Map<String, Endpoint<?>> endpoints = new ConcurrentHashMap<>();
+
+
+
+        public DocumentDispatcher(CrptApi crptApi) {
+            this.crptApi = crptApi;
+        }
+
+
+
+        public <T> Endpoint<T> register(String documentType, Class<T> documentClass, URI uri, long requestTimeoutMillis, RateLimiter rateLimiter) {
+            return register(documentType, documentClass, RequestTemplate.json(uri, requestTimeoutMillis), rateLimiter, null, null);
+        }
+
+        public <T> Endpoint<T> register(String documentType, Class<T> documentClass, RequestTemplate requestTemplate, RateLimiter rateLimiter) {
+            return register(documentType, documentClass, requestTemplate, rateLimiter, null, null);
+        }
+
+        //the writer is resolved here, once per document type, instead of on every send
+        //a template without a timeout would let a stalled endpoint hold its concurrency slot forever
+        //the concurrency limiter and circuit breaker are not required; each endpoint needs its own, so that an outage of one
+        //document type does not open the circuit for the others and round trips of different servers are not mixed
+        public <T> Endpoint<T> register(String documentType, Class<T> documentClass, RequestTemplate requestTemplate, RateLimiter rateLimiter,
+                                        ConcurrencyLimiter concurrencyLimiter, CircuitBreaker circuitBreaker) {
+            if (requestTemplate.getTimeoutMillis() <= 0) {
+                throw new IllegalArgumentException("Document type " + documentType + " is registered without a request timeout");
+            }
+            ObjectWriter writer = documentClass == ProductMadeInRussiaToSendInSalesDocument.class
+                    ? DocumentJsonSerializer.writerFor(crptApi.objectMapper)
+                    : crptApi.objectMapper.writerFor(documentClass);
+            Endpoint<T> endpoint = new Endpoint<>(documentClass, requestTemplate, writer, new SendLimits(rateLimiter, concurrencyLimiter, circuitBreaker), crptApi);
+            if (endpoints.putIfAbsent(documentType, endpoint) != null) {
+                throw new IllegalArgumentException("Document type " + documentType + " is already registered");
+            }
+            return endpoint;
+        }
+
+        public <T> Endpoint<T> getEndpoint(String documentType, Class<T> documentClass) {
+            Endpoint<?> endpoint = endpoints.get(documentType);
+            if (endpoint == null) {
+                throw new IllegalArgumentException("Document type " + documentType + " is not registered");
+            }
+            if (endpoint.documentClass != documentClass) {
+                throw new IllegalArgumentException("Document type " + documentType + " is registered for " + endpoint.documentClass.getName());
+            }
+            @SuppressWarnings("unchecked")
+            Endpoint<T> typed = (Endpoint<T>) endpoint;
+            return typed;
+        }
+
+        public CompletableFuture<HttpResponse<DocumentCreationResponse>> sendAsync(String documentType, Object document, String signToken) {
+            Endpoint<?> endpoint = endpoints.get(documentType);
+            if (endpoint == null) {
+                return CompletableFuture.failedFuture(new IllegalArgumentException("Document type " + documentType + " is not registered"));
+            }
+            return endpoint.sendUnchecked(document, signToken);
+        }
+
+
+
+        public static class Endpoint<T> {
+
+            private final Class<T> documentClass;
+            private final RequestTemplate requestTemplate;
+            private final ObjectWriter writer;
+            private final SendLimits limits;
+            private final CrptApi crptApi;
+
+            private Endpoint(Class<T> documentClass, RequestTemplate requestTemplate, ObjectWriter writer, SendLimits limits, CrptApi crptApi) {
+                this.documentClass = documentClass;
+                this.requestTemplate = requestTemplate;
+                this.writer = writer;
+                this.limits = limits;
+                this.crptApi = crptApi;
+            }
+
+            public RequestTemplate getRequestTemplate() {
+                return requestTemplate;
+            }
+
+            public RateLimiter getRateLimiter() {
+                return limits.rateLimiter;
+            }
+
+            public ConcurrencyLimiter getConcurrencyLimiter() {
+                return limits.concurrencyLimiter;
+            }
+
+            public CircuitBreaker getCircuitBreaker() {
+                return limits.circuitBreaker;
+            }
+
+            public HttpResponse<DocumentCreationResponse> send(T document, String signToken) {
+                return crptApi.getResponse(sendAsync(document, signToken));
+            }
+
+            public CompletableFuture<HttpResponse<DocumentCreationResponse>> sendAsync(T document, String signToken) {
+                return sendAsync(document, signToken, crptApi.documentCreationResponseHandler);
+            }
+
+            public <R> CompletableFuture<HttpResponse<R>> sendAsync(T document, String signToken, HttpResponse.BodyHandler<R> responseBodyHandler) {
+                return crptApi.sendDocumentAsync(requestTemplate, writer, limits, document, signToken, responseBodyHandler);
+            }
+
+            private CompletableFuture<HttpResponse<DocumentCreationResponse>> sendUnchecked(Object document, String signToken) {
+                if (!documentClass.isInstance(document)) {
+                    return CompletableFuture.failedFuture(new IllegalArgumentException(
+                            "Expected a " + documentClass.getName() + " but got " + (document == null ? null : document.getClass().getName())));
+                }
+                return sendAsync(documentClass.cast(document), signToken);
+            }
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    public static class DocumentBatcher implements AutoCloseable {
+
+        private final CrptApi crptApi;
+        private final long lingerNanos;
+        private final int maxBatchSize;
+        private final int maxProductsPerDocument;
+        private final ScheduledExecutorService scheduler;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Map<BatchKey, Batch> batches = new HashMap<>();
+        private boolean closed;
+
+
+
+        public DocumentBatcher(CrptApi crptApi, long linger, TimeUnit timeUnit, int maxBatchSize, int maxProductsPerDocument) {
+            this.crptApi = crptApi;
+            this.lingerNanos = timeUnit.toNanos(linger);
+            this.maxBatchSize = maxBatchSize;
+            this.maxProductsPerDocument = maxProductsPerDocument;
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "crpt-api-batcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+
+
+        public CompletableFuture<List<HttpResponse<DocumentCreationResponse>>> submit(ProductMadeInRussiaToSendInSalesDocument document, String signToken) {
+            BatchKey key = new BatchKey(withProducts(document, null), signToken);
+            CompletableFuture<List<HttpResponse<DocumentCreationResponse>>> result = new CompletableFuture<>();
+            Batch full = null;
+            lock.lock();
+            try {
+                //a batch opened now would never get its flush scheduled, leaving every submission joining it hanging
+                if (closed) {
+                    return CompletableFuture.failedFuture(new IllegalStateException("batcher is closed"));
+                }
+                Batch batch = batches.get(key);
+                if (batch == null) {
+                    batch = new Batch(key);
+                    batches.put(key, batch);
+                    Batch lingering = batch;
+                    scheduler.schedule(() -> flush(lingering), lingerNanos, TimeUnit.NANOSECONDS);
+                }
+                batch.documents.add(document);
+                batch.results.add(result);
+                if (batch.documents.size() >= maxBatchSize) {
+                    batches.remove(key);
+                    full = batch;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (full != null) {
+                send(full);
+            }
+            return result;
+        }
+
+        @Override
+        public void close() {
+            List<Batch> pending;
+            lock.lock();
+            try {
+                closed = true;
+                pending = new ArrayList<>(batches.values());
+                batches.clear();
+            } finally {
+                lock.unlock();
+            }
+            pending.forEach(this::send);
+            scheduler.shutdown();
+        }
+
+        private void flush(Batch batch) {
+            lock.lock();
+            try {
+                if (!batches.remove(batch.key, batch)) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            send(batch);
+        }
+
+        //the endpoint accepts one document per request, so submissions sharing a header are merged into one
+        //product list and then cut into documents of at most maxProductsPerDocument products
+        private void send(Batch batch) {
+            List<Product> products = new ArrayList<>();
+            boolean listed = false;
+            int[] offsets = new int[batch.documents.size() + 1];
+            for (int i = 0; i < batch.documents.size(); i++) {
+                List<Product> documentProducts = batch.documents.get(i).getProducts();
+                if (documentProducts != null) {
+                    products.addAll(documentProducts);
+                    listed = true;
+                }
+                offsets[i + 1] = products.size();
+            }
+
+            int chunks = Math.max(1, (products.size() + maxProductsPerDocument - 1) / maxProductsPerDocument);
+            List<CompletableFuture<HttpResponse<DocumentCreationResponse>>> sent = new ArrayList<>(chunks);
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                //the header is keyed without products, so an empty list sent by any submission is kept rather than sent as null
+                List<Product> chunkProducts = products.isEmpty() ? (listed ? products : null) : new ArrayList<>(
+                        products.subList(chunk * maxProductsPerDocument, Math.min(products.size(), (chunk + 1) * maxProductsPerDocument)));
+                sent.add(crptApi.createDocumentToSendInSalesProductMadeInRussiaAsync(
+                        withProducts(batch.key.header, chunkProducts), batch.key.signToken));
+            }
+
+            for (int i = 0; i < batch.documents.size(); i++) {
+                int first = Math.min(offsets[i] / maxProductsPerDocument, chunks - 1);
+                int last = Math.max(first, (offsets[i + 1] - 1) / maxProductsPerDocument);
+                List<CompletableFuture<HttpResponse<DocumentCreationResponse>>> carrying = sent.subList(first, last + 1);
+                CompletableFuture<List<HttpResponse<DocumentCreationResponse>>> result = batch.results.get(i);
+                CompletableFuture.allOf(carrying.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, throwable) -> {
+                    if (throwable != null) {
+                        result.completeExceptionally(throwable);
+                    } else {
+                        List<HttpResponse<DocumentCreationResponse>> responses = new ArrayList<>(carrying.size());
+                        carrying.forEach(response -> responses.add(response.join()));
+                        result.complete(responses);
+                    }
+                });
+            }
+        }
+
+        private static ProductMadeInRussiaToSendInSalesDocument withProducts(ProductMadeInRussiaToSendInSalesDocument document, List<Product> products) {
+            return new ProductMadeInRussiaToSendInSalesDocument(document.getDescription(), document.getDocumentId(),
+                    document.getDocumentStatus(), document.getDocumentType(), document.getImportRequest(), document.getOwnerInn(),
+                    document.getParticipantInn(), document.getProducerInn(), document.getProductionDate(),
+                    document.getProductionType(), products, document.getRegDate(), document.getRegNumber());
+        }
+
+
+
+        private static class Batch {
+
+            private final BatchKey key;
+            private final List<ProductMadeInRussiaToSendInSalesDocument> documents = new ArrayList<>();
+            private final List<CompletableFuture<List<HttpResponse<DocumentCreationResponse>>>> results = new ArrayList<>();
+
+            private Batch(BatchKey key) {
+                this.key = key;
+            }
+        }
+
+        private static class BatchKey {
+
+            private final ProductMadeInRussiaToSendInSalesDocument header;
+            private final String signToken;
+
+            private BatchKey(ProductMadeInRussiaToSendInSalesDocument header, String signToken) {
+                this.header = header;
+                this.signToken = signToken;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (this == o) return true;
+                if (o == null || getClass() != o.getClass()) return false;
+                BatchKey that = (BatchKey) o;
+                if (!header.equals(that.header)) return false;
+                return signToken != null ? signToken.equals(that.signToken) : that.signToken == null;
+            }
+
+            @Override
+            public int hashCode() {
+                int result = header.hashCode();
+                result = 31 * result + (signToken != null ? signToken.hashCode() : 0);
+                return result;
+            }
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    public static class ProductFeedIngestor {
+
+        private static final int MAX_REPORTED_REJECTIONS = 100;
+
+        private final CrptApi crptApi;
+        private final int maxProductsPerDocument;
+        private final int maxInFlightDocuments;
+        private final ObjectReader productReader;
+        private final CsvFactory csvFactory = new CsvFactory();
+
+
+
+        //at most maxInFlightDocuments chunks of maxProductsPerDocument products are held at once, whatever the feed size
+        public ProductFeedIngestor(CrptApi crptApi, int maxProductsPerDocument, int maxInFlightDocuments) {
+            this.crptApi = crptApi;
+            this.maxProductsPerDocument = maxProductsPerDocument;
+            this.maxInFlightDocuments = maxInFlightDocuments;
+            this.productReader = crptApi.objectMapper.readerFor(Product.class);
+        }
+
+
+
+        //one product object per line, using the same property names as the document json; a line that does not parse is
+        //rejected on its own and reading goes on with the next one
+        public Result ingestNdjson(InputStream in, ProductMadeInRussiaToSendInSalesDocument header, String signToken) throws IOException, InterruptedException {
+            Ingestion ingestion = new Ingestion(header, signToken);
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                long line = 0;
+                for (String row = reader.readLine(); row != null; row = reader.readLine()) {
+                    line++;
+                    if (row.isBlank()) {
+                        continue;
+                    }
+                    try {
+                        ingestion.add(line, productReader.readValue(row));
+                    } catch (JsonProcessingException e) {
+                        ingestion.result.reject(line, e.getOriginalMessage());
+                    }
+                }
+                ingestion.flush();
+            } finally {
+                ingestion.awaitInFlight();
+            }
+            return ingestion.result;
+        }
+
+        //the first row names the columns, using the same property names as the document json
+        public Result ingestCsv(InputStream in, ProductMadeInRussiaToSendInSalesDocument header, String signToken) throws IOException, InterruptedException {
+            Ingestion ingestion = new Ingestion(header, signToken);
+            try (CsvParser parser = csvFactory.createParser(in)) {
+                parser.setSchema(CsvSchema.emptySchema().withHeader());
+                parser.enable(CsvParser.Feature.EMPTY_STRING_AS_NULL);
+                try (MappingIterator<Product> rows = productReader.readValues(parser)) {
+                    //after a failed row the iterator skips to the end of that record before reading the next one
+                    while (rows.hasNextValue()) {
+                        long line = parser.currentLocation().getLineNr();
+                        try {
+                            ingestion.add(line, rows.nextValue());
+                        } catch (JsonProcessingException e) {
+                            ingestion.result.reject(line, e.getOriginalMessage());
+                        }
+                    }
+                }
+                ingestion.flush();
+            } finally {
+                ingestion.awaitInFlight();
+            }
+            return ingestion.result;
+        }
+
+        private static String missingRequiredField(Product product) {
+            if (product.getOwnerInn() == null) return "owner_inn";
+            if (product.getProducerInn() == null) return "producer_inn";
+            if (product.getProductionDate() == null) return "production_date";
+            if (product.getTnvedCode() == null) return "tnved_code";
+            return null;
+        }
+
+
+
+        //one feed being read: the reading thread blocks while maxInFlightDocuments documents are unanswered
+        private class Ingestion {
+
+            private final ProductMadeInRussiaToSendInSalesDocument header;
+            private final String signToken;
+            private final Semaphore inFlight = new Semaphore(maxInFlightDocuments);
+            private final Result result = new Result();
+            private List<Product> chunk = new ProductBatch(maxProductsPerDocument);
+
+            private Ingestion(ProductMadeInRussiaToSendInSalesDocument header, String signToken) {
+                this.header = header;
+                this.signToken = signToken;
+            }
+
+            private void add(long line, Product product) throws InterruptedException {
+                String missing = missingRequiredField(product);
+                if (missing != null) {
+                    result.reject(line, "missing " + missing);
+                    return;
+                }
+                result.rowsAccepted++;
+                chunk.add(product);
+                if (chunk.size() >= maxProductsPerDocument) {
+                    flush();
+                }
+            }
+
+            private void flush() throws InterruptedException {
+                if (chunk.isEmpty()) {
+                    return;
+                }
+                List<Product> products = chunk;
+                chunk = new ProductBatch(maxProductsPerDocument);
+                inFlight.acquire();
+                crptApi.createDocumentToSendInSalesProductMadeInRussiaAsync(DocumentBatcher.withProducts(header, products), signToken)
+                        .whenComplete((response, throwable) -> {
+                            if (throwable == null && response.statusCode() / 100 == 2) {
+                                result.documentsAccepted.increment();
+                            } else {
+                                result.documentsFailed.increment();
+                            }
+                            inFlight.release();
+                        });
+            }
+
+            //also reached when reading fails, so documents already handed to the client are never abandoned
+            private void awaitInFlight() {
+                inFlight.acquireUninterruptibly(maxInFlightDocuments);
+            }
+        }
+
+        public static class Result {
+
+            private final LongAdder documentsAccepted = new LongAdder();
+            private final LongAdder documentsFailed = new LongAdder();
+            private final List<String> rejections = new ArrayList<>();
+            private long rowsAccepted;
+            private long rowsRejected;
+
+            public long getRowsAccepted() {
+                return rowsAccepted;
+            }
+
+            public long getRowsRejected() {
+                return rowsRejected;
+            }
+
+            //only the first rejections are kept so that a bad feed cannot fill the heap with messages
+            public List<String> getRejections() {
+                return rejections;
+            }
+
+            public long getDocumentsAccepted() {
+                return documentsAccepted.sum();
+            }
+
+            public long getDocumentsFailed() {
+                return documentsFailed.sum();
+            }
+
+            private void reject(long line, String reason) {
+                rowsRejected++;
+                if (rejections.size() < MAX_REPORTED_REJECTIONS) {
+                    rejections.add("line " + line + ": " + reason);
+                }
+            }
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    public static class DocumentJsonSerializer extends StdSerializer<ProductMadeInRussiaToSendInSalesDocument> {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+
+        private static final SerializedString DESCRIPTION = new SerializedString("description");
+        private static final SerializedString PARTICIPANT_INN_OF_DESCRIPTION = new SerializedString("participantInn");
+        private static final SerializedString DOC_ID = new SerializedString("doc_id");
+        private static final SerializedString DOC_STATUS = new SerializedString("doc_status");
+        private static final SerializedString DOC_TYPE = new SerializedString("doc_type");
+        private static final SerializedString IMPORT_REQUEST = new SerializedString("importRequest");
+        private static final SerializedString OWNER_INN = new SerializedString("owner_inn");
+        private static final SerializedString PARTICIPANT_INN = new SerializedString("participant_inn");
+        private static final SerializedString PRODUCER_INN = new SerializedString("producer_inn");
+        private static final SerializedString PRODUCTION_DATE = new SerializedString("production_date");
+        private static final SerializedString PRODUCTION_TYPE = new SerializedString("production_type");
+        private static final SerializedString PRODUCTS = new SerializedString("products");
+        private static final SerializedString REG_DATE = new SerializedString("reg_date");
+        private static final SerializedString REG_NUMBER = new SerializedString("reg_number");
+        private static final SerializedString CERTIFICATE_DOCUMENT = new SerializedString("certificate_document");
+        private static final SerializedString CERTIFICATE_DOCUMENT_DATE = new SerializedString("certificate_document_date");
+        private static final SerializedString CERTIFICATE_DOCUMENT_NUMBER = new SerializedString("certificate_document_number");
+        private static final SerializedString TNVED_CODE = new SerializedString("tnved_code");
+        private static final SerializedString UIT_CODE = new SerializedString("uit_code");
+        private static final SerializedString UITU_CODE = new SerializedString("uitu_code");
+
+
+
+        public DocumentJsonSerializer() {
+            super(ProductMadeInRussiaToSendInSalesDocument.class);
+        }
+
+
+
+        //falls back to the reflective writer when the mapper is configured in a way this serializer does not reproduce
+        public static ObjectWriter writerFor(ObjectMapper objectMapper) {
+            SerializationConfig config = objectMapper.getSerializationConfig();
+            JsonInclude.Include inclusion = config.getDefaultPropertyInclusion().getValueInclusion();
+            boolean reproducible = (inclusion == JsonInclude.Include.ALWAYS || inclusion == JsonInclude.Include.USE_DEFAULTS)
+                    && config.findMixInClassFor(ProductMadeInRussiaToSendInSalesDocument.class) == null
+                    && config.findMixInClassFor(Description.class) == null
+                    && config.findMixInClassFor(Product.class) == null;
+            if (!reproducible) {
+                return objectMapper.writerFor(ProductMadeInRussiaToSendInSalesDocument.class);
+            }
+            return objectMapper.copy()
+                    .registerModule(new SimpleModule().addSerializer(new DocumentJsonSerializer()))
+                    .writerFor(ProductMadeInRussiaToSendInSalesDocument.class);
+        }
+
+        @Override
+        public void serialize(ProductMadeInRussiaToSendInSalesDocument document, JsonGenerator generator,
+                              SerializerProvider provider) throws IOException {
+            char[] date = new char[10];
+            generator.writeStartObject(document);
+            generator.writeFieldName(DESCRIPTION);
+            Description description = document.getDescription();
+            if (description == null) {
+                generator.writeNull();
+            } else {
+                generator.writeStartObject(description);
+                writeString(generator, PARTICIPANT_INN_OF_DESCRIPTION, description.getParticipantInn());
+                generator.writeEndObject();
+            }
+            writeString(generator, DOC_ID, document.getDocumentId());
+            writeString(generator, DOC_STATUS, document.getDocumentStatus());
+            writeString(generator, DOC_TYPE, document.getDocumentType());
+            generator.writeFieldName(IMPORT_REQUEST);
+            if (document.getImportRequest() == null) {
+                generator.writeNull();
+            } else {
+                generator.writeBoolean(document.getImportRequest());
+            }
+            writeString(generator, OWNER_INN, document.getOwnerInn());
+            writeString(generator, PARTICIPANT_INN, document.getParticipantInn());
+            writeString(generator, PRODUCER_INN, document.getProducerInn());
+            writeDate(generator, PRODUCTION_DATE, document.getProductionDate(), date);
+            writeString(generator, PRODUCTION_TYPE, document.getProductionType());
+            generator.writeFieldName(PRODUCTS);
+            List<Product> products = document.getProducts();
+            if (products == null) {
+                generator.writeNull();
+            } else if (products instanceof ProductBatch batch) {
+                generator.writeStartArray(products, batch.size());
+                for (int i = 0; i < batch.size(); i++) {
+                    writeProduct(generator, batch, i, date);
+                }
+                generator.writeEndArray();
+            } else {
+                generator.writeStartArray(products, products.size());
+                for (Product product : products) {
+                    writeProduct(generator, product, date);
+                }
+                generator.writeEndArray();
+            }
+            writeDate(generator, REG_DATE, document.getRegDate(), date);
+            writeString(generator, REG_NUMBER, document.getRegNumber());
+            generator.writeEndObject();
+        }
+
+        private static void writeProduct(JsonGenerator generator, Product product, char[] date) throws IOException {
+            if (product == null) {
+                generator.writeNull();
+                return;
+            }
+            generator.writeStartObject(product);
+            writeString(generator, CERTIFICATE_DOCUMENT, product.getCertificateDocument());
+            writeDate(generator, CERTIFICATE_DOCUMENT_DATE, product.getCertificateDocumentDate(), date);
+            writeString(generator, CERTIFICATE_DOCUMENT_NUMBER, product.getCertificateDocumentNumber());
+            writeString(generator, OWNER_INN, product.getOwnerInn());
+            writeString(generator, PRODUCER_INN, product.getProducerInn());
+            writeDate(generator, PRODUCTION_DATE, product.getProductionDate(), date);
+            writeString(generator, TNVED_CODE, product.getTnvedCode());
+            writeString(generator, UIT_CODE, product.getUitCode());
+            writeString(generator, UITU_CODE, product.getUituCode());
+            generator.writeEndObject();
+        }
+
+        //written straight from the columns, without materializing a Product per row
+        private static void writeProduct(JsonGenerator generator, ProductBatch batch, int index, char[] date) throws IOException {
+            generator.writeStartObject();
+            writeString(generator, CERTIFICATE_DOCUMENT, batch.getCertificateDocument(index));
+            writeDate(generator, CERTIFICATE_DOCUMENT_DATE, batch.getCertificateDocumentDate(index), date);
+            writeString(generator, CERTIFICATE_DOCUMENT_NUMBER, batch.getCertificateDocumentNumber(index));
+            writeString(generator, OWNER_INN, batch.getOwnerInn(index));
+            writeString(generator, PRODUCER_INN, batch.getProducerInn(index));
+            writeDate(generator, PRODUCTION_DATE, batch.getProductionDate(index), date);
+            writeString(generator, TNVED_CODE, batch.getTnvedCode(index));
+            writeString(generator, UIT_CODE, batch.getUitCode(index));
+            writeString(generator, UITU_CODE, batch.getUituCode(index));
+            generator.writeEndObject();
+        }
+
+        private static void writeString(JsonGenerator generator, SerializedString name, String value) throws IOException {
+            generator.writeFieldName(name);
+            if (value == null) {
+                generator.writeNull();
+            } else {
+                generator.writeString(value);
+            }
+        }
+
+        private static void writeDate(JsonGenerator generator, SerializedString name, LocalDate value, char[] date) throws IOException {
+            generator.writeFieldName(name);
+            if (value == null) {
+                generator.writeNull();
+                return;
+            }
+            int year = value.getYear();
+            if (year < 1 || year > 9999) {
+                generator.writeString(DATE_FORMATTER.format(value));
+                return;
+            }
+            writeDigits(date, 0, year, 4);
+            date[4] = '-';
+            writeDigits(date, 5, value.getMonthValue(), 2);
+            date[7] = '-';
+            writeDigits(date, 8, value.getDayOfMonth(), 2);
+            generator.writeString(date, 0, 10);
+        }
+
+        private static void writeDigits(char[] buffer, int offset, int value, int width) {
+            for (int i = offset + width - 1; i >= offset; i--) {
+                buffer[i] = (char) ('0' + value % 10);
+                value /= 10;
+            }
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //feeds the response bytes into Jackson's non-blocking parser as they arrive, so the body is never held as a String;
+    //bodies that are not JSON (proxy error pages and the like), or that do not map to the target type, are discarded and
+    //mapped to null, so that the response and its status code still reach the caller
+    public static class JsonBodyHandler<T> implements HttpResponse.BodyHandler<T> {
+
+        private final ObjectReader reader;
+
+
+
+        public JsonBodyHandler(ObjectReader reader) {
+            this.reader = reader;
+        }
+
+
+
+        @Override
+        public HttpResponse.BodySubscriber<T> apply(HttpResponse.ResponseInfo responseInfo) {
+            boolean json = responseInfo.headers().firstValue("Content-Type")
+                    .map(contentType -> contentType.toLowerCase().contains("json"))
+                    .orElse(true);
+            return json ? new JsonBodySubscriber() : HttpResponse.BodySubscribers.replacing(null);
+        }
+
+
+
+        private class JsonBodySubscriber implements HttpResponse.BodySubscriber<T> {
+
+            private final CompletableFuture<T> body = new CompletableFuture<>();
+            private final TokenBuffer tokens = new TokenBuffer(null, false);
+            private JsonParser parser;
+            private ByteBufferFeeder feeder;
+            private boolean empty = true;
+            private boolean discarded;
+            private Flow.Subscription subscription;
+
+            @Override
+            public CompletionStage<T> getBody() {
+                return body;
+            }
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                try {
+                    parser = reader.getFactory().createNonBlockingByteBufferParser();
+                    feeder = (ByteBufferFeeder) parser.getNonBlockingInputFeeder();
+                    subscription.request(Long.MAX_VALUE);
+                } catch (IOException e) {
+                    subscription.cancel();
+                    body.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void onNext(List<ByteBuffer> buffers) {
+                if (discarded) {
+                    return;
+                }
+                try {
+                    for (ByteBuffer buffer : buffers) {
+                        feeder.feedInput(buffer);
+                        drain();
+                    }
+                } catch (JsonProcessingException e) {
+                    //the rest of the body is still read, so the connection can be reused
+                    discarded = true;
+                } catch (IOException e) {
+                    subscription.cancel();
+                    body.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                body.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                if (body.isDone()) {
+                    return;
+                }
+                if (discarded) {
+                    body.complete(null);
+                    return;
+                }
+                try {
+                    feeder.endOfInput();
+                    drain();
+                    body.complete(empty ? null : reader.readValue(tokens.asParser()));
+                } catch (JsonProcessingException e) {
+                    body.complete(null);
+                } catch (IOException e) {
+                    body.completeExceptionally(e);
+                }
+            }
+
+            private void drain() throws IOException {
+                JsonToken token;
+                while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+                    tokens.copyCurrentEvent(parser);
+                    empty = false;
+                }
+            }
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    public static class JsonBodyPublisher implements HttpRequest.BodyPublisher {
+
+        private static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+        private final BodyWriter bodyWriter;
+        private final int chunkSize;
+        private final DeflaterPool deflaterPool;
+        private final LongConsumer serializationNanos;
+
+
+
+        public JsonBodyPublisher(ObjectWriter writer, Object value) {
+            this(writer, value, nanos -> {});
+        }
+
+        public JsonBodyPublisher(ObjectWriter writer, Object value, LongConsumer serializationNanos) {
+            this(writer, value, null, serializationNanos);
+        }
+
+        //the body is gzip-compressed while it is written when a deflater pool is given
+        public JsonBodyPublisher(ObjectWriter writer, Object value, DeflaterPool deflaterPool, LongConsumer serializationNanos) {
+            this(out -> writer.writeValue(out, value), DEFAULT_CHUNK_SIZE, deflaterPool, serializationNanos);
+        }
+
+        public JsonBodyPublisher(ObjectWriter writer, Object value, int chunkSize, LongConsumer serializationNanos) {
+            this(out -> writer.writeValue(out, value), chunkSize, null, serializationNanos);
+        }
+
+        public JsonBodyPublisher(byte[] json, DeflaterPool deflaterPool) {
+            this(out -> out.write(json), DEFAULT_CHUNK_SIZE, deflaterPool, nanos -> {});
+        }
+
+        private JsonBodyPublisher(BodyWriter bodyWriter, int chunkSize, DeflaterPool deflaterPool, LongConsumer serializationNanos) {
+            this.bodyWriter = bodyWriter;
+            this.chunkSize = chunkSize;
+            this.deflaterPool = deflaterPool;
+            this.serializationNanos = serializationNanos;
+        }
+
+
+
+        @Override
+        public long contentLength() {
+            return -1;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            ChunkSubscription subscription = new ChunkSubscription(subscriber);
+            subscriber.onSubscribe(subscription);
+            Thread.startVirtualThread(subscription::produce);
+        }
+
+
+
+        //the writer thread is parked while the client has no demand, so at most one chunk per request is on the heap
+        private class ChunkSubscription extends OutputStream implements Flow.Subscription {
+
+            private final Flow.Subscriber<? super ByteBuffer> subscriber;
+            private final ReentrantLock lock = new ReentrantLock();
+            private final Condition demandChanged = lock.newCondition();
+            private long demand;
+            private boolean cancelled;
+            private Throwable failure;
+            private ByteBuffer chunk;
+            private long parkedNanos;
+
+            private ChunkSubscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+                this.subscriber = subscriber;
+            }
+
+            @Override
+            public void request(long n) {
+                lock.lock();
+                try {
+                    if (n <= 0) {
+                        failure = new IllegalArgumentException("non-positive subscription request: " + n);
+                        cancelled = true;
+                    } else {
+                        demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                    }
+                    demandChanged.signal();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public void cancel() {
+                lock.lock();
+                try {
+                    cancelled = true;
+                    demandChanged.signal();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            private void produce() {
+                try {
+                    long startedAt = System.nanoTime();
+                    if (deflaterPool == null) {
+                        bodyWriter.writeTo(this);
+                    } else {
+                        Deflater deflater = deflaterPool.borrow();
+                        try (GzipOutputStream gzip = new GzipOutputStream(this, deflater)) {
+                            bodyWriter.writeTo(gzip);
+                        } finally {
+                            deflaterPool.release(deflater);
+                        }
+                    }
+                    close();
+                    serializationNanos.accept(System.nanoTime() - startedAt - parkedNanos);
+                    subscriber.onComplete();
+                } catch (Throwable e) {
+                    lock.lock();
+                    try {
+                        if (failure == null && cancelled) {
+                            return;
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    subscriber.onError(failure != null ? failure : e);
+                }
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                if (chunk == null || !chunk.hasRemaining()) {
+                    emit();
+                }
+                chunk.put((byte) b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                while (length > 0) {
+                    if (chunk == null || !chunk.hasRemaining()) {
+                        emit();
+                    }
+                    int count = Math.min(length, chunk.remaining());
+                    chunk.put(bytes, offset, count);
+                    offset += count;
+                    length -= count;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (chunk != null && chunk.position() > 0) {
+                    emit();
+                }
+            }
+
+            private void emit() throws IOException {
+                if (chunk != null) {
+                    lock.lock();
+                    try {
+                        long parkedAt = System.nanoTime();
+                        while (demand == 0 && !cancelled) {
+                            demandChanged.awaitUninterruptibly();
+                        }
+                        parkedNanos += System.nanoTime() - parkedAt;
+                        if (cancelled) {
+                            throw new IOException("body subscription cancelled");
+                        }
+                        demand--;
+                    } finally {
+                        lock.unlock();
+                    }
+                    subscriber.onNext(chunk.flip());
+                }
+                //handed over chunks may still be queued by the client, so they are never recycled
+                chunk = ByteBuffer.allocate(chunkSize);
+            }
+        }
+
+
+
+        private interface BodyWriter {
+
+            void writeTo(OutputStream out) throws IOException;
+        }
+
+        //GZIPOutputStream always creates its own Deflater, this one writes the same framing around a pooled one
+        private static class GzipOutputStream extends DeflaterOutputStream {
+
+            private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+            private final CRC32 crc = new CRC32();
+            private boolean finished;
+
+            private GzipOutputStream(OutputStream out, Deflater deflater) throws IOException {
+                super(out, deflater, DEFAULT_CHUNK_SIZE / 2);
+                out.write(HEADER);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                super.write(bytes, offset, length);
+                crc.update(bytes, offset, length);
+            }
+
+            @Override
+            public void finish() throws IOException {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                super.finish();
+                byte[] trailer = new byte[8];
+                writeIntLittleEndian(trailer, 0, (int) crc.getValue());
+                writeIntLittleEndian(trailer, 4, (int) def.getBytesRead());
+                out.write(trailer);
+            }
+
+            private static void writeIntLittleEndian(byte[] buffer, int offset, int value) {
+                buffer[offset] = (byte) value;
+                buffer[offset + 1] = (byte) (value >> 8);
+                buffer[offset + 2] = (byte) (value >> 16);
+                buffer[offset + 3] = (byte) (value >> 24);
+            }
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //immutable snapshot of a document: the hash code is computed once and the serialized body is kept after the first
+    //send, so retries, replays and fan-out sends reuse the same bytes
+    public static class FrozenDocument {
+
+        private final ProductMadeInRussiaToSendInSalesDocument document;
+        private final int hashCode;
+        private volatile SerializedBody serializedBody;
+
+
+
+        private FrozenDocument(ProductMadeInRussiaToSendInSalesDocument document) {
+            this.document = document;
+            this.hashCode = document.hashCode();
+        }
+
+        public static FrozenDocument of(ProductMadeInRussiaToSendInSalesDocument document) {
+            return new FrozenDocument(copyOf(document));
+        }
+
+
+
+        public String getDocumentId() {
+            return document.getDocumentId();
+        }
+
+        public String getParticipantInn() {
+            return document.getParticipantInn();
+        }
+
+        public ProductMadeInRussiaToSendInSalesDocument toDocument() {
+            return copyOf(document);
+        }
+
+        //the bytes are only reused for the writer that produced them
+        public byte[] serialize(ObjectWriter writer) throws JsonProcessingException {
+            SerializedBody body = serializedBody;
+            if (body == null || body.writer != writer) {
+                body = new SerializedBody(writer, writer.writeValueAsBytes(document));
+                serializedBody = body;
+            }
+            return body.bytes;
+        }
+
+        private static ProductMadeInRussiaToSendInSalesDocument copyOf(ProductMadeInRussiaToSendInSalesDocument document) {
+            List<Product> products = null;
+            if (document.getProducts() instanceof ProductBatch batch) {
+                products = new ProductBatch(batch);
+            } else if (document.getProducts() != null) {
+                products = new ArrayList<>(document.getProducts().size());
+                for (Product product : document.getProducts()) {
+                    products.add(product == null ? null : new Product(product.getCertificateDocument(), product.getCertificateDocumentDate(),
+                            product.getCertificateDocumentNumber(), product.getOwnerInn(), product.getProducerInn(),
+                            product.getProductionDate(), product.getTnvedCode(), product.getUitCode(), product.getUituCode()));
+                }
+            }
+            Description description = document.getDescription() == null ? null : new Description(document.getDescription().getParticipantInn());
+            return new ProductMadeInRussiaToSendInSalesDocument(description, document.getDocumentId(), document.getDocumentStatus(),
+                    document.getDocumentType(), document.getImportRequest(), document.getOwnerInn(), document.getParticipantInn(),
+                    document.getProducerInn(), document.getProductionDate(), document.getProductionType(), products,
+                    document.getRegDate(), document.getRegNumber());
+        }
+
+
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            FrozenDocument that = (FrozenDocument) o;
+            return hashCode == that.hashCode && document.equals(that.document);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+
+
+        private static class SerializedBody {
+
+            private final ObjectWriter writer;
+            private final byte[] bytes;
+
+            private SerializedBody(ObjectWriter writer, byte[] bytes) {
+                this.writer = writer;
+                this.bytes = bytes;
+            }
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    public static class DeflaterPool {
+
+        private final int level;
+        private final int maxSize;
+        private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+
+
+
+        public DeflaterPool(int level, int maxSize) {
+            this.level = level;
+            this.maxSize = maxSize;
+        }
+
+
+
+        //raw deflate, the gzip header and trailer are written by the body publisher
+        public Deflater borrow() {
+            Deflater deflater = deflaters.poll();
+            if (deflater == null) {
+                return new Deflater(level, true);
+            }
+            size.decrementAndGet();
+            return deflater;
+        }
+
+        public void release(Deflater deflater) {
+            if (size.incrementAndGet() > maxSize) {
+                size.decrementAndGet();
+                deflater.end();
+                return;
+            }
+            deflater.reset();
+            deflaters.add(deflater);
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //collapses duplicate submissions: a duplicate of an in-flight submission shares its future, and a duplicate of a
+    //recently accepted one is answered from the cache; failed and non-2xx results are never kept
+    public static class DeduplicationCache {
+
+        private final int maxSize;
+        private final long ttlNanos;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LinkedHashMap<SubmissionKey, Entry> entries = new LinkedHashMap<>();
+
+
+
+        public DeduplicationCache(int maxSize, long ttl, TimeUnit timeUnit) {
+            this.maxSize = maxSize;
+            this.ttlNanos = timeUnit.toNanos(ttl);
+        }
+
+
+
+        public CompletableFuture<HttpResponse<DocumentCreationResponse>> submit(FrozenDocument document, String signToken,
+                                                                                Supplier<CompletableFuture<HttpResponse<DocumentCreationResponse>>> sender) {
+            SubmissionKey key = SubmissionKey.of(document, signToken);
+            Entry entry;
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                entry = entries.get(key);
+                if (entry != null && !entry.isExpired(now)) {
+                    return entry.response;
+                }
+                entry = new Entry();
+                entries.remove(key);
+                entries.put(key, entry);
+                evict(now);
+            } finally {
+                lock.unlock();
+            }
+            Entry sent = entry;
+            CompletableFuture<HttpResponse<DocumentCreationResponse>> sending;
+            try {
+                sending = sender.get();
+            } catch (RuntimeException e) {
+                //an in-flight entry that is never completed would hang every later duplicate
+                sending = CompletableFuture.failedFuture(e);
+            }
+            sending.whenComplete((response, throwable) -> {
+                lock.lock();
+                try {
+                    if (throwable != null || response.statusCode() / 100 != 2) {
+                        entries.remove(key, sent);
+                    } else {
+                        sent.expiresAtNanos = System.nanoTime() + ttlNanos;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (throwable != null) {
+                    sent.response.completeExceptionally(throwable);
+                } else {
+                    sent.response.complete(response);
+                }
+            });
+            return sent.response;
+        }
+
+        public int size() {
+            lock.lock();
+            try {
+                return entries.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //entries are kept in insertion order, so the eldest ones are both the first to expire and the first to evict
+        private void evict(long now) {
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry eldest = iterator.next();
+                if (entries.size() > maxSize || eldest.isExpired(now)) {
+                    iterator.remove();
+                } else {
+                    break;
+                }
+            }
+        }
+
+
+
+        private static class Entry {
+
+            private final CompletableFuture<HttpResponse<DocumentCreationResponse>> response = new CompletableFuture<>();
+            private long expiresAtNanos = Long.MAX_VALUE;//in flight
+
+            private boolean isExpired(long now) {
+                return expiresAtNanos != Long.MAX_VALUE && now - expiresAtNanos >= 0;
+            }
+        }
+
+        //keyed by the frozen content, doc_id included, since chunks split from one header all carry its doc_id, and always
+        //by the sign token so that tenants reusing a doc_id never share a response
+        private static class SubmissionKey {
+
+            private final FrozenDocument document;
+            private final String signToken;
+
+            private SubmissionKey(FrozenDocument document, String signToken) {
+                this.document = document;
+                this.signToken = signToken;
+            }
+
+            private static SubmissionKey of(FrozenDocument document, String signToken) {
+                return new SubmissionKey(document, signToken);
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (this == o) return true;
+                if (o == null || getClass() != o.getClass()) return false;
+                SubmissionKey that = (SubmissionKey) o;
+                if (!document.equals(that.document)) return false;
+                return signToken != null ? signToken.equals(that.signToken) : that.signToken == null;
+            }
+
+            @Override
+            public int hashCode() {
+                int result = document.hashCode();
+                result = 31 * result + (signToken != null ? signToken.hashCode() : 0);
+                return result;
+            }
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //record layout: payload length, crc32 of the payload, state, then the payload itself (sign token length, sign token,
+    //document body); the length is written last so a torn append is never replayed
+    public static class DocumentOutbox implements AutoCloseable {
+
+        private static final String SEGMENT_SUFFIX = ".segment";
+        private static final int RECORD_HEADER_SIZE = Integer.BYTES + Integer.BYTES + Byte.BYTES;
+        private static final byte PENDING = 0;
+        private static final byte ACKNOWLEDGED = 1;
+        private static final byte REJECTED = 2;
+
+        private final CrptApi crptApi;
+        private final Path directory;
+        private final int segmentSize;
+        private final boolean forceOnAppend;
+        private final int maxInFlight;
+        private final Semaphore inFlight;
+        private final BlockingQueue<Entry> pending = new LinkedBlockingQueue<>();
+        private final AtomicInteger backingOff = new AtomicInteger();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Thread drainer;
+        private Segment activeSegment;
+        private long nextSegmentNumber;
+        private volatile boolean closed;
+
+
+
+        public DocumentOutbox(CrptApi crptApi, Path directory, int segmentSize, int maxInFlight, boolean forceOnAppend) throws IOException {
+            this.crptApi = crptApi;
+            this.directory = Files.createDirectories(directory);
+            this.segmentSize = segmentSize;
+            this.forceOnAppend = forceOnAppend;
+            this.maxInFlight = maxInFlight;
+            this.inFlight = new Semaphore(maxInFlight);
+            replay();
+            this.drainer = new Thread(this::drain, "crpt-api-outbox-drainer");
+            this.drainer.setDaemon(true);
+            this.drainer.start();
+        }
+
+
+
+        public CompletableFuture<HttpResponse<DocumentCreationResponse>> append(ProductMadeInRussiaToSendInSalesDocument document, String signToken) {
+            byte[] token = signToken.getBytes(StandardCharsets.UTF_8);
+            byte[] body;
+            try {
+                body = crptApi.documentWriter.writeValueAsBytes(document);
+            } catch (JsonProcessingException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            int payloadLength = Integer.BYTES + token.length + body.length;
+            CRC32 crc = new CRC32();
+            Entry entry;
+            lock.lock();
+            try {
+                if (closed) {
+                    return CompletableFuture.failedFuture(new IllegalStateException("outbox is closed"));
+                }
+                Segment segment = segmentFor(RECORD_HEADER_SIZE + payloadLength);
+                int offset = segment.writePosition;
+                ByteBuffer record = segment.buffer.duplicate().position(offset + RECORD_HEADER_SIZE);
+                record.putInt(token.length).put(token).put(body);
+                crc.update(segment.buffer.duplicate().position(offset + RECORD_HEADER_SIZE).limit(offset + RECORD_HEADER_SIZE + payloadLength));
+                segment.buffer.putInt(offset + Integer.BYTES, (int) crc.getValue());
+                segment.buffer.put(offset + Integer.BYTES * 2, PENDING);
+                segment.buffer.putInt(offset, payloadLength);
+                segment.writePosition = offset + RECORD_HEADER_SIZE + payloadLength;
+                segment.pending.incrementAndGet();
+                if (forceOnAppend) {
+                    segment.buffer.force(offset, RECORD_HEADER_SIZE + payloadLength);
+                }
+                entry = new Entry(segment, offset, new CompletableFuture<>());
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            } finally {
+                lock.unlock();
+            }
+            pending.add(entry);
+            return entry.result;
+        }
+
+        public int getPendingCount() {
+            return pending.size() + backingOff.get() + maxInFlight - inFlight.availablePermits();
+        }
+
+        //stops the drainer, waits for the sends already in flight to settle their records, and flushes the active segment;
+        //records still pending are left in the journal for the next replay
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                closed = true;
+            } finally {
+                lock.unlock();
+            }
+            drainer.interrupt();
+            boolean interrupted = false;
+            while (drainer.isAlive()) {
+                try {
+                    drainer.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            inFlight.acquireUninterruptibly(maxInFlight);
+            inFlight.release(maxInFlight);
+            lock.lock();
+            try {
+                if (activeSegment != null) {
+                    activeSegment.buffer.force();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private Segment segmentFor(int recordSize) throws IOException {
+            //a zero length after the last record marks the end of a segment
+            int required = recordSize + Integer.BYTES;
+            if (activeSegment == null || activeSegment.buffer.capacity() - activeSegment.writePosition < required) {
+                Segment previous = activeSegment;
+                activeSegment = Segment.create(directory.resolve(String.format("%020d%s", nextSegmentNumber++, SEGMENT_SUFFIX)),
+                        Math.max(segmentSize, required));
+                if (previous != null && previous.pending.get() == 0) {
+                    previous.delete();
+                }
+            }
+            return activeSegment;
+        }
+
+        private void replay() throws IOException {
+            List<Path> segments;
+            try (Stream<Path> files = Files.list(directory)) {
+                segments = files.filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().collect(Collectors.toList());
+            }
+            for (Path file : segments) {
+                String name = file.getFileName().toString();
+                nextSegmentNumber = Math.max(nextSegmentNumber, Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())) + 1);
+                Segment segment = Segment.open(file);
+                int offset = 0;
+                while (offset + RECORD_HEADER_SIZE <= segment.buffer.capacity()) {
+                    int payloadLength = segment.buffer.getInt(offset);
+                    if (payloadLength <= 0 || offset + RECORD_HEADER_SIZE + payloadLength > segment.buffer.capacity()) {
+                        break;
+                    }
+                    CRC32 crc = new CRC32();
+                    crc.update(segment.buffer.duplicate().position(offset + RECORD_HEADER_SIZE).limit(offset + RECORD_HEADER_SIZE + payloadLength));
+                    if ((int) crc.getValue() != segment.buffer.getInt(offset + Integer.BYTES)) {
+                        break;
+                    }
+                    if (segment.buffer.get(offset + Integer.BYTES * 2) == PENDING) {
+                        segment.pending.incrementAndGet();
+                        pending.add(new Entry(segment, offset, new CompletableFuture<>()));
+                    }
+                    offset += RECORD_HEADER_SIZE + payloadLength;
+                }
+                if (segment.pending.get() == 0) {
+                    segment.delete();
+                }
+            }
+        }
+
+        private void drain() {
+            try {
+                while (!closed) {
+                    Entry entry = pending.take();
+                    inFlight.acquire();
+                    send(entry);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void send(Entry entry) {
+            ByteBuffer record = entry.segment.buffer.duplicate().position(entry.offset);
+            int payloadLength = record.getInt();
+            record.position(entry.offset + RECORD_HEADER_SIZE);
+            byte[] token = new byte[record.getInt()];
+            record.get(token);
+            byte[] body = new byte[payloadLength - Integer.BYTES - token.length];
+            record.get(body);
+            //the permit is held until the record is settled, so that close() never flushes ahead of a state change
+            crptApi.sendSerializedDocumentAsync(body, new String(token, StandardCharsets.UTF_8)).whenComplete((response, throwable) -> {
+                if (throwable != null || response.statusCode() == 429 || response.statusCode() >= 500) {
+                    //left pending in the journal and retried after a backoff, a restart would replay it as well
+                    retryLater(entry, throwable == null ? retryAfterMillis(response) : 0);
+                    inFlight.release();
+                    return;
+                }
+                //redirects are not followed, so only a 2xx means the document was taken
+                complete(entry, response.statusCode() / 100 == 2 ? ACKNOWLEDGED : REJECTED);
+                inFlight.release();
+                entry.result.complete(response);
+            });
+        }
+
+        //a failing or open-circuit endpoint fails sends at once, so requeueing without a delay would spin the drainer
+        private void retryLater(Entry entry, long retryAfterMillis) {
+            long delayMillis = Math.max(retryAfterMillis, crptApi.backoffMillis(entry.attempts++));
+            backingOff.incrementAndGet();
+            CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS).execute(() -> {
+                pending.add(entry);
+                backingOff.decrementAndGet();
+            });
+        }
+
+        private void complete(Entry entry, byte state) {
+            entry.segment.buffer.put(entry.offset + Integer.BYTES * 2, state);
+            if (entry.segment.pending.decrementAndGet() == 0) {
+                lock.lock();
+                try {
+                    if (entry.segment != activeSegment) {
+                        entry.segment.delete();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+
+
+        private static class Segment {
+
+            private final Path file;
+            private final MappedByteBuffer buffer;
+            private final AtomicInteger pending = new AtomicInteger();
+            private int writePosition;
+
+            private Segment(Path file, MappedByteBuffer buffer) {
+                this.file = file;
+                this.buffer = buffer;
+            }
+
+            private static Segment create(Path file, int size) throws IOException {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    return new Segment(file, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+                }
+            }
+
+            private static Segment open(Path file) throws IOException {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    return new Segment(file, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+                }
+            }
+
+            private void delete() {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    //kept on disk, replay skips acknowledged records
+                }
+            }
+        }
+
+        private static class Entry {
+
+            private final Segment segment;
+            private final int offset;
+            private final CompletableFuture<HttpResponse<DocumentCreationResponse>> result;
+            private int attempts;//only touched by the completion of the entry's single outstanding send
+
+            private Entry(Segment segment, int offset, CompletableFuture<HttpResponse<DocumentCreationResponse>> result) {
+                this.segment = segment;
+                this.offset = offset;
+                this.result = result;
+            }
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    public interface RateLimiter {
+
+        int DEFAULT_PRIORITY = 0;
+
+        long NO_DEADLINE = Long.MAX_VALUE;
+
+        CompletableFuture<Void> acquireAsync();
+
+        //higher priorities are granted first, a permit not granted by the deadline (epoch millis) fails with TimeoutException
+        default CompletableFuture<Void> acquireAsync(int priority, long deadlineMillis) {
+            if (System.currentTimeMillis() >= deadlineMillis) {
+                return CompletableFuture.failedFuture(new TimeoutException("Deadline passed before a permit was granted"));
+            }
+            return acquireAsync();
+        }
+
+        void refund();//returns a granted but unused permit
+
+        //limiters that count permits per window return it to the window it was taken from, not the current one
+        default void refund(CompletableFuture<Void> permit) {
+            refund();
+        }
+
+        default void onAccepted() {
+        }
+
+        default void onRejected(long retryAfterMillis) {
+        }
+
+        default void acquire() {
+            acquireAsync().join();
+        }
+
+        default void acquireInterruptibly() throws InterruptedException {
+            await(acquireAsync());
+        }
+
+        default void await(CompletableFuture<Void> permit) throws InterruptedException {
+            try {
+                permit.get();
+            } catch (InterruptedException e) {
+                abandon(permit);
+                throw e;
+            } catch (ExecutionException e) {
+                throw new CompletionException(e.getCause());
+            }
+        }
+
+        default boolean tryAcquire() {
+            try {
+                return tryAcquire(0, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        default boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+            CompletableFuture<Void> permit = acquireAsync();
+            try {
+                permit.get(timeout, unit);
+                return true;
+            } catch (TimeoutException e) {
+                //a permit granted between the timeout and the cancellation is refunded, so it is never both kept and handed back
+                abandon(permit);
+                return false;
+            } catch (InterruptedException e) {
+                abandon(permit);
+                throw e;
+            } catch (ExecutionException e) {
+                throw new CompletionException(e.getCause());
+            }
+        }
+
+        private void abandon(CompletableFuture<Void> permit) {
+            if (!permit.cancel(false) && !permit.isCompletedExceptionally()) {
+                refund(permit);
+            }
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    public static class FixedWindowRateLimiter implements RateLimiter {
+
+        private final int requestLimit;
+        private final long windowMillis;
+        private final QuotaStore quotaStore;
+        private final Timer timer;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Queue<Waiter> waiters = new PriorityQueue<>();
+        private long waiterSequence;
+        private volatile int currentLimit;
+        private int acceptedSinceIncrease;
+        private long lastDecreaseWindow = -1;
+        private long blockedUntilMillis;
+
+
+
+        public FixedWindowRateLimiter(TimeUnit timeUnit, Integer requestLimit, Timer timer) {
+            this(timeUnit, requestLimit, timer, new InMemoryQuotaStore());
+        }
+
+        //windows are aligned to the wall clock so that limiters sharing a quota store agree on window boundaries
+        public FixedWindowRateLimiter(TimeUnit timeUnit, Integer requestLimit, Timer timer, QuotaStore quotaStore) {
+            this.requestLimit = requestLimit;
+            this.currentLimit = requestLimit;
+            this.windowMillis = timeUnit.toMillis(1);
+            this.quotaStore = quotaStore;
+            this.timer = timer;
+            timer.scheduleAtFixedRate(resetWindow(), windowMillis - System.currentTimeMillis() % windowMillis, windowMillis);
+        }
+
+
+
+        @Override
+        public CompletableFuture<Void> acquireAsync() {
+            return acquireAsync(DEFAULT_PRIORITY, NO_DEADLINE);
+        }
+
+        //expired waiters are failed by the deadline timeout and skipped when permits are handed out, so they never consume quota
+        @Override
+        public CompletableFuture<Void> acquireAsync(int priority, long deadlineMillis) {
+            lock.lock();
+            try {
+                long now = System.currentTimeMillis();
+                if (now >= deadlineMillis) {
+                    return CompletableFuture.failedFuture(new TimeoutException("Deadline passed before a permit was granted"));
+                }
+                while (!waiters.isEmpty() && waiters.peek().permit.isDone()) {
+                    waiters.poll();
+                }
+                long window = currentWindow();
+                if (waiters.isEmpty() && tryConsume(window)) {
+                    return WindowPermit.granted(window);
+                }
+                CompletableFuture<Void> permit = new WindowPermit();
+                waiters.add(new Waiter(permit, priority, deadlineMillis, waiterSequence++));
+                return deadlineMillis == NO_DEADLINE ? permit : permit.orTimeout(deadlineMillis - now, TimeUnit.MILLISECONDS);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void refund() {
+            refund(currentWindow());
+        }
+
+        //a permit refunded after its window has passed is dropped, the quota store ignores refunds to an old window
+        @Override
+        public void refund(CompletableFuture<Void> permit) {
+            refund(permit instanceof WindowPermit windowPermit && windowPermit.window >= 0 ? windowPermit.window : currentWindow());
+        }
+
+        //additive increase: the limit grows by one after a full limit's worth of accepted requests
+        @Override
+        public void onAccepted() {
+            if (currentLimit == requestLimit) {
+                return;
+            }
+            lock.lock();
+            try {
+                if (++acceptedSinceIncrease >= currentLimit) {
+                    acceptedSinceIncrease = 0;
+                    currentLimit = Math.min(requestLimit, currentLimit + 1);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //multiplicative decrease, at most once per window so that one burst of rejections does not collapse the limit
+        @Override
+        public void onRejected(long retryAfterMillis) {
+            lock.lock();
+            try {
+                long window = currentWindow();
+                if (window != lastDecreaseWindow) {
+                    lastDecreaseWindow = window;
+                    acceptedSinceIncrease = 0;
+                    currentLimit = Math.max(1, currentLimit / 2);
+                }
+                if (retryAfterMillis > 0 && System.currentTimeMillis() + retryAfterMillis > blockedUntilMillis) {
+                    blockedUntilMillis = System.currentTimeMillis() + retryAfterMillis;
+                    timer.schedule(resetWindow(), retryAfterMillis);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int getCurrentLimit() {
+            return currentLimit;
+        }
+
+        private void refund(long window) {
+            quotaStore.refund(window);
+            grantWaiters();
+        }
+
+        private boolean tryConsume(long window) {
+            return System.currentTimeMillis() >= blockedUntilMillis && quotaStore.tryConsume(window, currentLimit);
+        }
+
+        private long currentWindow() {
+            return System.currentTimeMillis() / windowMillis;
+        }
+
+        private void grantWaiters() {
+            List<CompletableFuture<Void>> granted = new ArrayList<>();
+            lock.lock();
+            try {
+                long window = currentWindow();
+                long now = System.currentTimeMillis();
+                while (!waiters.isEmpty()) {
+                    Waiter waiter = waiters.peek();
+                    if (waiter.permit.isDone() || now >= waiter.deadlineMillis) {
+                        waiters.poll().permit.completeExceptionally(new TimeoutException("Deadline passed before a permit was granted"));
+                    } else if (tryConsume(window)) {
+                        WindowPermit permit = (WindowPermit) waiters.poll().permit;
+                        permit.window = window;
+                        granted.add(permit);
+                    } else {
+                        break;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            //completed outside the lock so that dependent stages never run while holding it
+            for (CompletableFuture<Void> permit : granted) {
+                if (!permit.complete(null)) {
+                    refund(permit);
+                }
+            }
+        }
+
+        private TimerTask resetWindow() {
+            return new TimerTask() {
+                public void run() {
+                    grantWaiters();
+                }
+            };
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //generic cell rate algorithm: permits are spaced periodNanos / limit apart, up to burst of them may go out back to back
+    public static class GcraRateLimiter implements RateLimiter {
+
+        private final int requestLimit;
+        private final int burst;
+        private final long periodNanos;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Queue<Waiter> waiters = new PriorityQueue<>();
+        private volatile int currentLimit;
+        private long emissionIntervalNanos;
+        private long theoreticalArrivalNanos;
+        private int acceptedSinceIncrease;
+        private long lastDecreaseNanos;
+        private long blockedUntilNanos;
+        private long wakeUpAtNanos;
+        private boolean wakeUpScheduled;
+        private long waiterSequence;
+
+
+
+        public GcraRateLimiter(TimeUnit timeUnit, int requestLimit) {
+            this(timeUnit, requestLimit, 1);
+        }
+
+        public GcraRateLimiter(TimeUnit timeUnit, int requestLimit, int burst) {
+            this.requestLimit = requestLimit;
+            this.currentLimit = requestLimit;
+            this.burst = burst;
+            this.periodNanos = timeUnit.toNanos(1);
+            this.emissionIntervalNanos = Math.max(1, periodNanos / requestLimit);
+            long now = System.nanoTime();
+            this.theoreticalArrivalNanos = now;
+            this.lastDecreaseNanos = now - periodNanos;
+            this.blockedUntilNanos = now;
+        }
+
+
+
+        @Override
+        public CompletableFuture<Void> acquireAsync() {
+            return acquireAsync(DEFAULT_PRIORITY, NO_DEADLINE);
+        }
+
+        @Override
+        public CompletableFuture<Void> acquireAsync(int priority, long deadlineMillis) {
+            lock.lock();
+            try {
+                long nowMillis = System.currentTimeMillis();
+                if (nowMillis >= deadlineMillis) {
+                    return CompletableFuture.failedFuture(new TimeoutException("Deadline passed before a permit was granted"));
+                }
+                while (!waiters.isEmpty() && waiters.peek().permit.isDone()) {
+                    waiters.poll();
+                }
+                if (waiters.isEmpty() && tryConsume(System.nanoTime())) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                CompletableFuture<Void> permit = new CompletableFuture<>();
+                waiters.add(new Waiter(permit, priority, deadlineMillis, waiterSequence++));
+                scheduleWakeUp(System.nanoTime());
+                return deadlineMillis == NO_DEADLINE ? permit : permit.orTimeout(deadlineMillis - nowMillis, TimeUnit.MILLISECONDS);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void refund() {
+            lock.lock();
+            try {
+                theoreticalArrivalNanos -= emissionIntervalNanos;
+            } finally {
+                lock.unlock();
+            }
+            grantWaiters();
+        }
+
+        //additive increase: the rate grows by one after a full limit's worth of accepted requests
+        @Override
+        public void onAccepted() {
+            if (currentLimit == requestLimit) {
+                return;
+            }
+            lock.lock();
+            try {
+                if (++acceptedSinceIncrease >= currentLimit) {
+                    acceptedSinceIncrease = 0;
+                    setCurrentLimit(Math.min(requestLimit, currentLimit + 1));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //multiplicative decrease, at most once per period so that one burst of rejections does not collapse the rate
+        @Override
+        public void onRejected(long retryAfterMillis) {
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                if (now - lastDecreaseNanos >= periodNanos) {
+                    lastDecreaseNanos = now;
+                    acceptedSinceIncrease = 0;
+                    setCurrentLimit(Math.max(1, currentLimit / 2));
+                }
+                if (retryAfterMillis > 0 && now + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis) - blockedUntilNanos > 0) {
+                    blockedUntilNanos = now + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int getCurrentLimit() {
+            return currentLimit;
+        }
+
+        private void setCurrentLimit(int limit) {
+            currentLimit = limit;
+            emissionIntervalNanos = Math.max(1, periodNanos / limit);
+        }
+
+        //nanoTime values are only compared by difference, they may overflow
+        private boolean tryConsume(long now) {
+            if (now - nextConformingNanos() < 0) {
+                return false;
+            }
+            theoreticalArrivalNanos = (now - theoreticalArrivalNanos > 0 ? now : theoreticalArrivalNanos) + emissionIntervalNanos;
+            return true;
+        }
+
+        private long nextConformingNanos() {
+            long conforming = theoreticalArrivalNanos - (burst - 1) * emissionIntervalNanos;
+            return blockedUntilNanos - conforming > 0 ? blockedUntilNanos : conforming;
+        }
+
+        private void grantWaiters() {
+            List<CompletableFuture<Void>> granted = new ArrayList<>();
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                long nowMillis = System.currentTimeMillis();
+                while (!waiters.isEmpty()) {
+                    Waiter waiter = waiters.peek();
+                    if (waiter.permit.isDone() || nowMillis >= waiter.deadlineMillis) {
+                        waiters.poll().permit.completeExceptionally(new TimeoutException("Deadline passed before a permit was granted"));
+                    } else if (tryConsume(now)) {
+                        granted.add(waiters.poll().permit);
+                    } else {
+                        break;
+                    }
+                }
+                scheduleWakeUp(now);
+            } finally {
+                lock.unlock();
+            }
+            //completed outside the lock so that dependent stages never run while holding it
+            for (CompletableFuture<Void> permit : granted) {
+                if (!permit.complete(null)) {
+                    refund();
+                }
+            }
+        }
+
+        //a single wake-up for the head waiter replaces the periodic timer, nothing runs while no one is waiting
+        private void scheduleWakeUp(long now) {
+            if (waiters.isEmpty()) {
+                return;
+            }
+            long at = nextConformingNanos();
+            if (wakeUpScheduled && at - wakeUpAtNanos >= 0) {
+                return;
+            }
+            wakeUpScheduled = true;
+            wakeUpAtNanos = at;
+            Executor delayed = CompletableFuture.delayedExecutor(Math.max(0, at - now), TimeUnit.NANOSECONDS);
+            delayed.execute(() -> {
+                lock.lock();
+                try {
+                    if (wakeUpAtNanos == at) {
+                        wakeUpScheduled = false;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                grantWaiters();
+            });
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    public interface QuotaStore {
+
+        boolean tryConsume(long window, int limit);
+
+        void refund(long window);
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //the window number and the consumed count share one long (window in the high half) so both change in a single CAS
+    public static class InMemoryQuotaStore implements QuotaStore {
+
+        private final AtomicLong state = new AtomicLong();
+
+
+
+        @Override
+        public boolean tryConsume(long window, int limit) {
+            while (true) {
+                long current = state.get();
+                long next = QuotaState.consume(current, window, limit);
+                if (next == current) {
+                    return false;
+                }
+                if (state.compareAndSet(current, next)) {
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public void refund(long window) {
+            while (true) {
+                long current = state.get();
+                long next = QuotaState.refund(current, window);
+                if (next == current || state.compareAndSet(current, next)) {
+                    return;
+                }
+            }
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //shares one window between processes on the same host: every process maps the same file and CASes its first long
+    public static class MappedQuotaStore implements QuotaStore {
+
+        private static final VarHandle STATE = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+        private final MappedByteBuffer buffer;
+
+
+
+        public MappedQuotaStore(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES);
+            }
+        }
+
+
+
+        @Override
+        public boolean tryConsume(long window, int limit) {
+            while (true) {
+                long current = (long) STATE.getVolatile(buffer, 0);
+                long next = QuotaState.consume(current, window, limit);
+                if (next == current) {
+                    return false;
+                }
+                if (STATE.compareAndSet(buffer, 0, current, next)) {
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public void refund(long window) {
+            while (true) {
+                long current = (long) STATE.getVolatile(buffer, 0);
+                long next = QuotaState.refund(current, window);
+                if (next == current || STATE.compareAndSet(buffer, 0, current, next)) {
+                    return;
+                }
+            }
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //the limits a send is made under: the default ones of a CrptApi, or those of one DocumentDispatcher endpoint
+    private static class SendLimits {
+
+        private final RateLimiter rateLimiter;
+        private final ConcurrencyLimiter concurrencyLimiter;//not required
+        private final CircuitBreaker circuitBreaker;//not required
+
+        private SendLimits(RateLimiter rateLimiter, ConcurrencyLimiter concurrencyLimiter, CircuitBreaker circuitBreaker) {
+            this.rateLimiter = rateLimiter;
+            this.concurrencyLimiter = concurrencyLimiter;
+            this.circuitBreaker = circuitBreaker;
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    private static class QuotaState {
+
+        //returns the unchanged state when the window is exhausted
+        private static long consume(long state, long window, int limit) {
+            int stateWindow = (int) (state >>> 32);
+            int consumed = (int) state;
+            if (stateWindow != (int) window) {
+                return limit > 0 ? pack(window, 1) : state;
+            }
+            return consumed < limit ? pack(window, consumed + 1) : state;
+        }
+
+        private static long refund(long state, long window) {
+            int consumed = (int) state;
+            if ((int) (state >>> 32) != (int) window || consumed == 0) {
+                return state;
+            }
+            return pack(window, consumed - 1);
+        }
+
+        private static long pack(long window, int consumed) {
+            return window << 32 | (consumed & 0xFFFFFFFFL);
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //a permit that remembers the quota window it was granted from, -1 until it is granted
+    private static class WindowPermit extends CompletableFuture<Void> {
+
+        private volatile long window = -1;
+
+        private static WindowPermit granted(long window) {
+            WindowPermit permit = new WindowPermit();
+            permit.window = window;
+            permit.complete(null);
+            return permit;
+        }
+    }
+
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //highest priority first, earliest deadline first within a priority, then arrival order
+    private static class Waiter implements Comparable<Waiter> {
+
+        private final CompletableFuture<Void> permit;
+        private final int priority;
+        private final long deadlineMillis;
+        private final long sequence;
+
+        private Waiter(CompletableFuture<Void> permit, int priority, long deadlineMillis, long sequence) {
+            this.permit = permit;
+            this.priority = priority;
+            this.deadlineMillis = deadlineMillis;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            if (priority != other.priority) {
+                return Integer.compare(other.priority, priority);
+            }
+            if (deadlineMillis != other.deadlineMillis) {
+                return Long.compare(deadlineMillis, other.deadlineMillis);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
 }
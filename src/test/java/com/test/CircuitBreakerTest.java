@@ -0,0 +1,116 @@
+package com.test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CircuitBreakerTest {
+
+    @Test
+    void opensOnceTheFailureRateIsReached() {
+        CrptApi.CircuitBreaker circuitBreaker = new CrptApi.CircuitBreaker(0.5, 2, 1, 1, TimeUnit.MINUTES, 1);
+
+        circuitBreaker.onResult(circuitBreaker.tryAcquire(), false);
+        circuitBreaker.onResult(circuitBreaker.tryAcquire(), true);
+        assertEquals(CrptApi.CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+        assertFalse(circuitBreaker.isCallPermitted());
+        assertEquals(CrptApi.CircuitBreaker.REJECTED, circuitBreaker.tryAcquire());
+    }
+
+    @Test
+    void resultOfACallStartedWhileClosedIsNotTakenForAProbe() throws Exception {
+        CrptApi.CircuitBreaker circuitBreaker = new CrptApi.CircuitBreaker(0.5, 2, 1, 50, TimeUnit.MILLISECONDS, 1);
+        long leftover = circuitBreaker.tryAcquire();
+        circuitBreaker.onResult(circuitBreaker.tryAcquire(), true);
+        circuitBreaker.onResult(circuitBreaker.tryAcquire(), true);
+        Thread.sleep(60);
+
+        long probe = circuitBreaker.tryAcquire();
+        assertNotEquals(CrptApi.CircuitBreaker.REJECTED, probe);
+        assertEquals(CrptApi.CircuitBreaker.REJECTED, circuitBreaker.tryAcquire());
+
+        circuitBreaker.onResult(leftover, false);
+        assertEquals(CrptApi.CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+
+        circuitBreaker.onResult(probe, false);
+        assertEquals(CrptApi.CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    void ignoredProbeCanBeTakenByAnotherCallAndAFailedProbeReopens() throws Exception {
+        CrptApi.CircuitBreaker circuitBreaker = new CrptApi.CircuitBreaker(0.5, 1, 1, 50, TimeUnit.MILLISECONDS, 1);
+        circuitBreaker.onResult(circuitBreaker.tryAcquire(), true);
+        Thread.sleep(60);
+
+        circuitBreaker.onIgnored(circuitBreaker.tryAcquire());
+        long probe = circuitBreaker.tryAcquire();
+        assertNotEquals(CrptApi.CircuitBreaker.REJECTED, probe);
+
+        circuitBreaker.onResult(probe, true);
+        assertEquals(CrptApi.CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    void submissionsQueuedForAPermitAreRejectedOnceTheCircuitOpens() throws Exception {
+        AtomicInteger received = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            received.incrementAndGet();
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+        });
+        server.start();
+        Timer timer = new Timer(true);
+        try {
+            CrptApi.Configuration configuration = new CrptApi.Configuration();
+            configuration.setPushToSalesProductMadeInRussiaUri(URI.create("http://localhost:" + server.getAddress().getPort() + "/"));
+            configuration.setCircuitBreaker(new CrptApi.CircuitBreaker(0.5, 2, 1, 1, TimeUnit.MINUTES, 1));
+            CrptApi crptApi = new CrptApi(TimeUnit.SECONDS, 1, HttpClient.newHttpClient(), new ObjectMapper().registerModule(new JavaTimeModule()),
+                    timer, configuration);
+
+            List<CompletableFuture<HttpResponse<CrptApi.DocumentCreationResponse>>> responses = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                responses.add(crptApi.createDocumentToSendInSalesProductMadeInRussiaAsync(new CrptApi.ProductMadeInRussiaToSendInSalesDocument(), "token"));
+            }
+            int rejected = 0;
+            for (CompletableFuture<HttpResponse<CrptApi.DocumentCreationResponse>> response : responses) {
+                try {
+                    response.get(10, TimeUnit.SECONDS);
+                } catch (ExecutionException e) {
+                    assertInstanceOf(RejectedExecutionException.class, e.getCause());
+                    rejected++;
+                }
+            }
+
+            assertEquals(2, received.get());
+            assertEquals(4, rejected);
+            assertThrows(ExecutionException.class,
+                    () -> crptApi.createDocumentToSendInSalesProductMadeInRussiaAsync(new CrptApi.ProductMadeInRussiaToSendInSalesDocument(), "token").get());
+        } finally {
+            server.stop(0);
+            timer.cancel();
+        }
+    }
+}
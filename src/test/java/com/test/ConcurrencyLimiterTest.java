@@ -0,0 +1,35 @@
+package com.test;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConcurrencyLimiterTest {
+
+    @Test
+    void cancelledWaiterIsNotGrantedTheReleasedSlot() {
+        CrptApi.ConcurrencyLimiter concurrencyLimiter = new CrptApi.ConcurrencyLimiter(1, 1, 1, 10);
+        assertTrue(concurrencyLimiter.acquireAsync().isDone());
+        CompletableFuture<Void> waiter = concurrencyLimiter.acquireAsync();
+
+        assertTrue(waiter.cancel(false));
+        concurrencyLimiter.release(0, false);
+
+        assertTrue(concurrencyLimiter.acquireAsync().isDone());
+    }
+
+    @Test
+    void grantedSlotThatIsReleasedAgainFreesTheLimit() {
+        CrptApi.ConcurrencyLimiter concurrencyLimiter = new CrptApi.ConcurrencyLimiter(1, 1, 1, 10);
+        assertTrue(concurrencyLimiter.acquireAsync().isDone());
+        CompletableFuture<Void> waiter = concurrencyLimiter.acquireAsync();
+        concurrencyLimiter.release(0, false);
+
+        assertTrue(waiter.isDone());
+        concurrencyLimiter.release(0, false);
+
+        assertTrue(concurrencyLimiter.acquireAsync().isDone());
+    }
+}
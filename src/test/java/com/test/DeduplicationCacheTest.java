@@ -0,0 +1,87 @@
+package com.test;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.http.HttpResponse;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeduplicationCacheTest {
+
+    private final CrptApi.DeduplicationCache deduplicationCache = new CrptApi.DeduplicationCache(100, 1, TimeUnit.MINUTES);
+    private final CrptApi.FrozenDocument document = CrptApi.FrozenDocument.of(
+            new CrptApi.ProductMadeInRussiaToSendInSalesDocument("doc-1", null, null, null, null, null, null, null, null));
+
+    @Test
+    void sameDocumentAndTokenIsSentOnce() {
+        AtomicInteger sent = new AtomicInteger();
+        CompletableFuture<HttpResponse<CrptApi.DocumentCreationResponse>> pending = new CompletableFuture<>();
+
+        CompletableFuture<HttpResponse<CrptApi.DocumentCreationResponse>> first = deduplicationCache.submit(document, "token", () -> {
+            sent.incrementAndGet();
+            return pending;
+        });
+        CompletableFuture<HttpResponse<CrptApi.DocumentCreationResponse>> second = deduplicationCache.submit(document, "token", () -> {
+            sent.incrementAndGet();
+            return pending;
+        });
+
+        assertEquals(1, sent.get());
+        assertSame(first, second);
+    }
+
+    @Test
+    void sameDocIdFromAnotherTokenIsSentSeparately() {
+        AtomicInteger sent = new AtomicInteger();
+
+        deduplicationCache.submit(document, "tenant-a", () -> {
+            sent.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+        deduplicationCache.submit(document, "tenant-b", () -> {
+            sent.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+
+        assertEquals(2, sent.get());
+    }
+
+    @Test
+    void chunksSharingADocIdAreSentSeparately() {
+        AtomicInteger sent = new AtomicInteger();
+
+        for (String tnvedCode : List.of("6401", "6402", "6403")) {
+            CrptApi.ProductMadeInRussiaToSendInSalesDocument chunk =
+                    new CrptApi.ProductMadeInRussiaToSendInSalesDocument("doc-1", null, null, null, null, null, null, null, null);
+            chunk.setProducts(List.of(new CrptApi.Product("7700000000", "7800000000", LocalDate.of(2024, 3, 15), tnvedCode)));
+            deduplicationCache.submit(CrptApi.FrozenDocument.of(chunk), "token", () -> {
+                sent.incrementAndGet();
+                return new CompletableFuture<>();
+            });
+        }
+
+        assertEquals(3, sent.get());
+    }
+
+    @Test
+    void senderThatThrowsDoesNotLeaveAnEntryInFlight() {
+        CompletableFuture<HttpResponse<CrptApi.DocumentCreationResponse>> failed = deduplicationCache.submit(document, "token", () -> {
+            throw new IllegalArgumentException("invalid header value");
+        });
+        AtomicInteger sent = new AtomicInteger();
+        deduplicationCache.submit(document, "token", () -> {
+            sent.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+
+        assertTrue(failed.isCompletedExceptionally());
+        assertEquals(1, sent.get());
+    }
+}
@@ -0,0 +1,90 @@
+package com.test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DocumentBatcherTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+    private final Timer timer = new Timer(true);
+    private final List<JsonNode> received = new CopyOnWriteArrayList<>();
+    private HttpServer server;
+    private CrptApi crptApi;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/", exchange -> {
+            received.add(objectMapper.readTree(exchange.getRequestBody()));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+        CrptApi.Configuration configuration = new CrptApi.Configuration();
+        configuration.setPushToSalesProductMadeInRussiaUri(URI.create("http://localhost:" + server.getAddress().getPort() + "/"));
+        crptApi = new CrptApi(TimeUnit.SECONDS, 1000, HttpClient.newHttpClient(), objectMapper, timer, configuration);
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+        timer.cancel();
+    }
+
+    @Test
+    void emptyProductListsAreSentAsAnEmptyList() throws Exception {
+        CompletableFuture<List<HttpResponse<CrptApi.DocumentCreationResponse>>> first;
+        CompletableFuture<List<HttpResponse<CrptApi.DocumentCreationResponse>>> second;
+        try (CrptApi.DocumentBatcher batcher = new CrptApi.DocumentBatcher(crptApi, 1, TimeUnit.MINUTES, 10, 10)) {
+            first = batcher.submit(document(), "token");
+            second = batcher.submit(document(), "token");
+        }
+
+        assertEquals(1, first.get(10, TimeUnit.SECONDS).size());
+        assertEquals(1, second.get(10, TimeUnit.SECONDS).size());
+        assertEquals(1, received.size());
+        assertTrue(received.get(0).get("products").isArray());
+        assertEquals(0, received.get(0).get("products").size());
+    }
+
+    @Test
+    void submissionsAfterCloseAreRejected() {
+        CrptApi.DocumentBatcher batcher = new CrptApi.DocumentBatcher(crptApi, 1, TimeUnit.MINUTES, 10, 10);
+        batcher.close();
+
+        for (int i = 0; i < 2; i++) {
+            CompletableFuture<List<HttpResponse<CrptApi.DocumentCreationResponse>>> result = batcher.submit(document(), "token");
+            ExecutionException rejected = assertThrows(ExecutionException.class, () -> result.get(1, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalStateException.class, rejected.getCause());
+        }
+    }
+
+    private static CrptApi.ProductMadeInRussiaToSendInSalesDocument document() {
+        CrptApi.ProductMadeInRussiaToSendInSalesDocument document =
+                new CrptApi.ProductMadeInRussiaToSendInSalesDocument("doc-1", null, null, null, null, null, null, null, null);
+        document.setProducts(new ArrayList<>());
+        return document;
+    }
+}
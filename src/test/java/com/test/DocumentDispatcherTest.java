@@ -0,0 +1,127 @@
+package com.test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Timer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DocumentDispatcherTest {
+
+    record Receipt(String id) {
+    }
+
+    private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+    private final Timer timer = new Timer(true);
+    private final AtomicInteger received = new AtomicInteger();
+    private final AtomicReference<String> lastBody = new AtomicReference<>();
+    private HttpServer server;
+    private URI uri;
+    private CrptApi crptApi;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/", exchange -> {
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                body = new GZIPInputStream(new ByteArrayInputStream(body)).readAllBytes();
+            }
+            lastBody.set(new String(body, StandardCharsets.UTF_8));
+            if (received.incrementAndGet() == 1) {
+                exchange.getResponseHeaders().add("Retry-After", "0");
+                exchange.sendResponseHeaders(429, -1);
+            } else {
+                byte[] response = "{\"value\":\"accepted\"}".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+            }
+            exchange.close();
+        });
+        server.start();
+        uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/");
+        CrptApi.Configuration configuration = new CrptApi.Configuration();
+        configuration.setMaxRetries(1);
+        configuration.setRetryBackoffMillis(1);
+        configuration.setCompressionThresholdBytes(0);
+        crptApi = new CrptApi(TimeUnit.SECONDS, 1000, HttpClient.newHttpClient(), objectMapper, timer, configuration);
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+        timer.cancel();
+    }
+
+    @Test
+    void endpointSendsThroughTheSharedPipeline() throws Exception {
+        CrptApi.DocumentDispatcher dispatcher = new CrptApi.DocumentDispatcher(crptApi);
+        dispatcher.register("receipt", Receipt.class, uri, 5000, new CrptApi.FixedWindowRateLimiter(TimeUnit.SECONDS, 1000, timer));
+
+        HttpResponse<CrptApi.DocumentCreationResponse> response = dispatcher.sendAsync("receipt", new Receipt("42"), "token").get(10, TimeUnit.SECONDS);
+
+        assertEquals(200, response.statusCode());
+        assertEquals("accepted", response.body().getValue());
+        assertEquals(2, received.get());
+        assertEquals("{\"id\":\"42\"}", lastBody.get());
+        assertEquals(1, crptApi.getMetrics().snapshot().getRejected());
+    }
+
+    @Test
+    void registrationRequiresARequestTimeout() {
+        CrptApi.DocumentDispatcher dispatcher = new CrptApi.DocumentDispatcher(crptApi);
+
+        assertThrows(IllegalArgumentException.class,
+                () -> dispatcher.register("receipt", Receipt.class, uri, 0, new CrptApi.FixedWindowRateLimiter(TimeUnit.SECONDS, 1000, timer)));
+    }
+
+    @Test
+    void outageOfOneEndpointDoesNotOpenTheCircuitOfAnother() throws Exception {
+        server.createContext("/failing", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+        });
+        CrptApi.CircuitBreaker defaultCircuitBreaker = new CrptApi.CircuitBreaker(0.5, 1, 1, 1, TimeUnit.MINUTES, 1);
+        CrptApi.Configuration configuration = new CrptApi.Configuration();
+        configuration.setMaxRetries(1);
+        configuration.setRetryBackoffMillis(1);
+        configuration.setCircuitBreaker(defaultCircuitBreaker);
+        CrptApi.DocumentDispatcher dispatcher = new CrptApi.DocumentDispatcher(
+                new CrptApi(TimeUnit.SECONDS, 1000, HttpClient.newHttpClient(), objectMapper, timer, configuration));
+        CrptApi.DocumentDispatcher.Endpoint<Receipt> failing = dispatcher.register("failing", Receipt.class,
+                CrptApi.RequestTemplate.json(uri.resolve("/failing"), 5000), new CrptApi.FixedWindowRateLimiter(TimeUnit.SECONDS, 1000, timer),
+                null, new CrptApi.CircuitBreaker(0.5, 1, 1, 1, TimeUnit.MINUTES, 1));
+        CrptApi.DocumentDispatcher.Endpoint<Receipt> receipts = dispatcher.register("receipt", Receipt.class,
+                CrptApi.RequestTemplate.json(uri, 5000), new CrptApi.FixedWindowRateLimiter(TimeUnit.SECONDS, 1000, timer),
+                new CrptApi.ConcurrencyLimiter(4, 1, 16, 100), new CrptApi.CircuitBreaker(0.5, 1, 1, 1, TimeUnit.MINUTES, 1));
+
+        assertEquals(500, failing.sendAsync(new Receipt("1"), "token").get(10, TimeUnit.SECONDS).statusCode());
+        ExecutionException rejected = assertThrows(ExecutionException.class, () -> failing.sendAsync(new Receipt("2"), "token").get(10, TimeUnit.SECONDS));
+
+        assertInstanceOf(RejectedExecutionException.class, rejected.getCause());
+        assertEquals(CrptApi.CircuitBreaker.State.OPEN, failing.getCircuitBreaker().getState());
+        assertEquals(200, receipts.sendAsync(new Receipt("3"), "token").get(10, TimeUnit.SECONDS).statusCode());
+        assertEquals(CrptApi.CircuitBreaker.State.CLOSED, receipts.getCircuitBreaker().getState());
+        assertEquals(CrptApi.CircuitBreaker.State.CLOSED, defaultCircuitBreaker.getState());
+    }
+}
@@ -0,0 +1,68 @@
+package com.test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DocumentJsonSerializerTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+    private final ObjectWriter reflectiveWriter = objectMapper.writerFor(CrptApi.ProductMadeInRussiaToSendInSalesDocument.class);
+    private final ObjectWriter specializedWriter = CrptApi.DocumentJsonSerializer.writerFor(objectMapper);
+
+    @Test
+    void writesTheSameBytesAsTheReflectiveWriter() throws Exception {
+        CrptApi.ProductMadeInRussiaToSendInSalesDocument document = document(products());
+
+        assertArrayEquals(reflectiveWriter.writeValueAsBytes(document), specializedWriter.writeValueAsBytes(document));
+    }
+
+    @Test
+    void writesEmptyDocumentTheSameWay() throws Exception {
+        CrptApi.ProductMadeInRussiaToSendInSalesDocument document = new CrptApi.ProductMadeInRussiaToSendInSalesDocument();
+
+        assertArrayEquals(reflectiveWriter.writeValueAsBytes(document), specializedWriter.writeValueAsBytes(document));
+    }
+
+    @Test
+    void writesProductBatchTheSameAsList() throws Exception {
+        List<CrptApi.Product> products = products();
+        byte[] expected = reflectiveWriter.writeValueAsBytes(document(products));
+        CrptApi.ProductMadeInRussiaToSendInSalesDocument batched = document(CrptApi.ProductBatch.of(products));
+
+        assertArrayEquals(expected, specializedWriter.writeValueAsBytes(batched));
+        assertArrayEquals(expected, reflectiveWriter.writeValueAsBytes(batched));
+        assertEquals(products, batched.getProducts());
+    }
+
+    @Test
+    void frozenDocumentSerializesLikeTheOriginal() throws Exception {
+        CrptApi.ProductMadeInRussiaToSendInSalesDocument document = document(CrptApi.ProductBatch.of(products()));
+
+        assertArrayEquals(specializedWriter.writeValueAsBytes(document), CrptApi.FrozenDocument.of(document).serialize(specializedWriter));
+    }
+
+    private static CrptApi.ProductMadeInRussiaToSendInSalesDocument document(List<CrptApi.Product> products) {
+        LocalDate date = LocalDate.of(2024, 3, 15);
+        return new CrptApi.ProductMadeInRussiaToSendInSalesDocument(new CrptApi.Description("7700000000"), "doc-1", "NEW",
+                "LP_INTRODUCE_GOODS", false, "7700000000", "7700000000", "7800000000", date, "OWN_PRODUCTION", products, date, null);
+    }
+
+    private static List<CrptApi.Product> products() {
+        List<CrptApi.Product> products = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            products.add(new CrptApi.Product(i % 3 == 0 ? null : "certificate", i % 4 == 0 ? null : LocalDate.of(2023, 1 + i % 12, 1 + i % 28),
+                    "CN-" + i % 5, "770000000" + i % 3, "7800000000", LocalDate.of(2024, 3, 1 + i % 28), "6401" + i % 7,
+                    "0104600000000" + i, i % 2 == 0 ? null : "uitu \"" + i + "\" код"));
+        }
+        return products;
+    }
+}
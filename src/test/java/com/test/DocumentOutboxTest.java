@@ -0,0 +1,219 @@
+package com.test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Timer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DocumentOutboxTest {
+
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES + Integer.BYTES + Byte.BYTES;
+    private static final int STATE_OFFSET = Integer.BYTES * 2;
+    private static final byte ACKNOWLEDGED = 1;
+    private static final byte REJECTED = 2;
+
+    @TempDir
+    Path directory;
+
+    private final Timer timer = new Timer(true);
+    private final AtomicInteger status = new AtomicInteger(200);
+    private final AtomicInteger received = new AtomicInteger();
+    private volatile long delayMillis;
+    private HttpServer server;
+    private CrptApi crptApi;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            received.incrementAndGet();
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(status.get(), -1);
+            exchange.close();
+        });
+        server.start();
+        CrptApi.Configuration configuration = new CrptApi.Configuration();
+        configuration.setPushToSalesProductMadeInRussiaUri(URI.create("http://localhost:" + server.getAddress().getPort() + "/"));
+        configuration.setRetryBackoffMillis(TimeUnit.MINUTES.toMillis(1));
+        configuration.setMaxRetryBackoffMillis(TimeUnit.MINUTES.toMillis(1));
+        crptApi = new CrptApi(TimeUnit.SECONDS, 1000, HttpClient.newHttpClient(), new ObjectMapper().registerModule(new JavaTimeModule()),
+                timer, configuration);
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+        timer.cancel();
+    }
+
+    @Test
+    void pendingRecordsAreReplayedAndTheirSegmentDeleted() throws Exception {
+        status.set(503);
+        try (CrptApi.DocumentOutbox outbox = new CrptApi.DocumentOutbox(crptApi, directory, 1 << 16, 4, false)) {
+            for (int i = 0; i < 3; i++) {
+                outbox.append(document("doc-" + i), "token");
+            }
+            awaitReceived(3);
+        }
+        received.set(0);
+        status.set(200);
+
+        try (CrptApi.DocumentOutbox outbox = new CrptApi.DocumentOutbox(crptApi, directory, 1 << 16, 4, false)) {
+            awaitNoSegments();
+        }
+        assertEquals(3, received.get());
+    }
+
+    @Test
+    void replayStopsAtARecordWithABadChecksum() throws Exception {
+        Path segment = journal(3);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            int second = recordOffset(channel, 1);
+            ByteBuffer corrupt = ByteBuffer.allocate(1);
+            channel.read(corrupt, second + RECORD_HEADER_SIZE + Integer.BYTES);
+            corrupt.put(0, (byte) (corrupt.get(0) ^ 0xFF));
+            channel.write(corrupt.rewind(), second + RECORD_HEADER_SIZE + Integer.BYTES);
+        }
+
+        assertEquals(1, replay());
+    }
+
+    @Test
+    void replayStopsAtATornAppend() throws Exception {
+        Path segment = journal(3);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            //the length is written last, so an append torn by a crash leaves it zero
+            channel.write(ByteBuffer.allocate(Integer.BYTES), recordOffset(channel, 2));
+        }
+
+        assertEquals(2, replay());
+    }
+
+    @Test
+    void acknowledgedSegmentsAreDeletedOnRotation() throws Exception {
+        try (CrptApi.DocumentOutbox outbox = new CrptApi.DocumentOutbox(crptApi, directory, 64, 4, false)) {
+            for (int i = 0; i < 3; i++) {
+                assertEquals(200, outbox.append(document("doc-" + i), "token").get(10, TimeUnit.SECONDS).statusCode());
+            }
+            assertEquals(1, segments().size());
+        }
+        new CrptApi.DocumentOutbox(crptApi, directory, 64, 4, false).close();
+
+        assertTrue(segments().isEmpty());
+        assertEquals(3, received.get());
+    }
+
+    @Test
+    void redirectIsNotAcknowledged() throws Exception {
+        status.set(302);
+        try (CrptApi.DocumentOutbox outbox = new CrptApi.DocumentOutbox(crptApi, directory, 1 << 16, 4, false)) {
+            assertEquals(302, outbox.append(document("doc-1"), "token").get(10, TimeUnit.SECONDS).statusCode());
+        }
+
+        assertEquals(REJECTED, state(segments().get(0)));
+    }
+
+    @Test
+    void closeWaitsForSendsInFlight() throws Exception {
+        delayMillis = 300;
+        try (CrptApi.DocumentOutbox outbox = new CrptApi.DocumentOutbox(crptApi, directory, 1 << 16, 4, false)) {
+            outbox.append(document("doc-1"), "token");
+            awaitReceived(1);
+        }
+
+        assertEquals(ACKNOWLEDGED, state(segments().get(0)));
+    }
+
+    //writes records that stay pending, the endpoint failing every send
+    private Path journal(int records) throws Exception {
+        status.set(503);
+        try (CrptApi.DocumentOutbox outbox = new CrptApi.DocumentOutbox(crptApi, directory, 1 << 16, 4, false)) {
+            for (int i = 0; i < records; i++) {
+                outbox.append(document("doc-" + i), "token");
+            }
+            awaitReceived(records);
+        }
+        received.set(0);
+        status.set(200);
+        return segments().get(0);
+    }
+
+    //the replayed segment is deleted once every record replayed from it has been settled
+    private int replay() throws Exception {
+        try (CrptApi.DocumentOutbox outbox = new CrptApi.DocumentOutbox(crptApi, directory, 1 << 16, 4, false)) {
+            awaitNoSegments();
+        }
+        return received.get();
+    }
+
+    private static byte state(Path segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            ByteBuffer state = ByteBuffer.allocate(1);
+            channel.read(state, STATE_OFFSET);
+            return state.get(0);
+        }
+    }
+
+    private static int recordOffset(FileChannel channel, int index) throws IOException {
+        int offset = 0;
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        for (int i = 0; i < index; i++) {
+            channel.read(length.clear(), offset);
+            offset += RECORD_HEADER_SIZE + length.getInt(0);
+        }
+        return offset;
+    }
+
+    private void awaitReceived(int requests) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (received.get() < requests && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(received.get() >= requests);
+    }
+
+    private void awaitNoSegments() throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!segments().isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(segments().isEmpty());
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static CrptApi.ProductMadeInRussiaToSendInSalesDocument document(String documentId) {
+        return new CrptApi.ProductMadeInRussiaToSendInSalesDocument(documentId, null, null, null, null, null, null, null, null);
+    }
+}
@@ -0,0 +1,44 @@
+package com.test;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Timer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FairQueueTest {
+
+    private final Timer timer = new Timer(true);
+    private final CrptApi.FairQueue fairQueue = new CrptApi.FairQueue(CrptApi.FairQueue.TenantKey.SIGN_TOKEN, TimeUnit.SECONDS);
+
+    @AfterEach
+    void tearDown() {
+        timer.cancel();
+    }
+
+    @Test
+    void idleTenantsAreDropped() throws Exception {
+        fairQueue.bind(new CrptApi.FixedWindowRateLimiter(TimeUnit.SECONDS, 1000, timer));
+
+        for (int i = 0; i < 100; i++) {
+            fairQueue.acquireAsync("token-" + i, CrptApi.RateLimiter.DEFAULT_PRIORITY, CrptApi.RateLimiter.NO_DEADLINE).get(1, TimeUnit.SECONDS);
+        }
+
+        assertEquals(0, fairQueue.getTenantCount());
+    }
+
+    @Test
+    void configuredTenantsAreKept() throws Exception {
+        fairQueue.bind(new CrptApi.FixedWindowRateLimiter(TimeUnit.SECONDS, 1000, timer));
+        fairQueue.setWeight("weighted", 2);
+        fairQueue.setQuota("limited", 10);
+
+        fairQueue.acquireAsync("weighted", CrptApi.RateLimiter.DEFAULT_PRIORITY, CrptApi.RateLimiter.NO_DEADLINE).get(1, TimeUnit.SECONDS);
+        fairQueue.acquireAsync("limited", CrptApi.RateLimiter.DEFAULT_PRIORITY, CrptApi.RateLimiter.NO_DEADLINE).get(1, TimeUnit.SECONDS);
+        fairQueue.acquireAsync("anonymous", CrptApi.RateLimiter.DEFAULT_PRIORITY, CrptApi.RateLimiter.NO_DEADLINE).get(1, TimeUnit.SECONDS);
+
+        assertEquals(2, fairQueue.getTenantCount());
+    }
+}
@@ -0,0 +1,72 @@
+package com.test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class JsonBodyHandlerTest {
+
+    private final CrptApi.JsonBodyHandler<CrptApi.DocumentCreationResponse> handler =
+            new CrptApi.JsonBodyHandler<>(new ObjectMapper().readerFor(CrptApi.DocumentCreationResponse.class));
+    private final HttpClient client = HttpClient.newHttpClient();
+    private HttpServer server;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    void bodyIsMappedToTheTargetType() throws Exception {
+        HttpResponse<CrptApi.DocumentCreationResponse> response = send(200, "{\"value\":\"accepted\"}");
+
+        assertEquals(200, response.statusCode());
+        assertEquals("accepted", response.body().getValue());
+    }
+
+    @Test
+    void bodyOfAnotherShapeKeepsTheStatusCode() throws Exception {
+        HttpResponse<CrptApi.DocumentCreationResponse> response = send(400, "[{\"error\":\"bad doc\"}]");
+
+        assertEquals(400, response.statusCode());
+        assertNull(response.body());
+    }
+
+    @Test
+    void malformedBodyKeepsTheStatusCode() throws Exception {
+        HttpResponse<CrptApi.DocumentCreationResponse> response = send(502, "{\"value\": oops}");
+
+        assertEquals(502, response.statusCode());
+        assertNull(response.body());
+    }
+
+    private HttpResponse<CrptApi.DocumentCreationResponse> send(int statusCode, String body) throws Exception {
+        server.createContext("/", exchange -> {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(statusCode, bytes.length);
+            exchange.getResponseBody().write(bytes);
+            exchange.close();
+        });
+        URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/");
+        return client.send(HttpRequest.newBuilder(uri).GET().build(), handler);
+    }
+}
@@ -0,0 +1,93 @@
+package com.test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+class JsonBodyPublisherTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+    private final ObjectWriter writer = CrptApi.DocumentJsonSerializer.writerFor(objectMapper);
+
+    @Test
+    void streamsTheSerializedDocument() throws Exception {
+        CrptApi.ProductMadeInRussiaToSendInSalesDocument document = document(5000);
+
+        byte[] body = collect(new CrptApi.JsonBodyPublisher(writer, document));
+
+        assertArrayEquals(writer.writeValueAsBytes(document), body);
+    }
+
+    @Test
+    void gzipFramingIsReadableByGzipInputStream() throws Exception {
+        CrptApi.DeflaterPool deflaterPool = new CrptApi.DeflaterPool(Deflater.DEFAULT_COMPRESSION, 1);
+        CrptApi.ProductMadeInRussiaToSendInSalesDocument document = document(5000);
+
+        for (int i = 0; i < 2; i++) {
+            byte[] body = collect(new CrptApi.JsonBodyPublisher(writer, document, deflaterPool, nanos -> {}));
+
+            assertArrayEquals(writer.writeValueAsBytes(document), new GZIPInputStream(new ByteArrayInputStream(body)).readAllBytes());
+        }
+    }
+
+    @Test
+    void gzipsSerializedBytes() throws Exception {
+        byte[] json = writer.writeValueAsBytes(document(10));
+
+        byte[] body = collect(new CrptApi.JsonBodyPublisher(json, new CrptApi.DeflaterPool(Deflater.BEST_SPEED, 1)));
+
+        assertArrayEquals(json, new GZIPInputStream(new ByteArrayInputStream(body)).readAllBytes());
+    }
+
+    private static byte[] collect(HttpRequest.BodyPublisher publisher) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompletableFuture<byte[]> done = new CompletableFuture<>();
+        publisher.subscribe(new Flow.Subscriber<>() {
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            public void onNext(ByteBuffer item) {
+                byte[] bytes = new byte[item.remaining()];
+                item.get(bytes);
+                out.writeBytes(bytes);
+            }
+
+            public void onError(Throwable throwable) {
+                done.completeExceptionally(throwable);
+            }
+
+            public void onComplete() {
+                done.complete(out.toByteArray());
+            }
+        });
+        return done.get(10, TimeUnit.SECONDS);
+    }
+
+    private static CrptApi.ProductMadeInRussiaToSendInSalesDocument document(int productsQuantity) {
+        LocalDate date = LocalDate.of(2024, 3, 15);
+        List<CrptApi.Product> products = new ArrayList<>(productsQuantity);
+        for (int i = 0; i < productsQuantity; i++) {
+            products.add(new CrptApi.Product("certificate", date, "CN-" + i, "7700000000", "7800000000", date,
+                    "6401100000", "0104600000000" + i, null));
+        }
+        return new CrptApi.ProductMadeInRussiaToSendInSalesDocument(new CrptApi.Description("7700000000"), "doc-1", "NEW",
+                "LP_INTRODUCE_GOODS", false, "7700000000", "7700000000", "7800000000", date, "OWN_PRODUCTION", products, date, null);
+    }
+}
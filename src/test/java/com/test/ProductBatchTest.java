@@ -0,0 +1,45 @@
+package com.test;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ProductBatchTest {
+
+    @Test
+    void datesAtTheEdgesOfTheColumnAreKept() {
+        LocalDate earliest = LocalDate.ofEpochDay(Integer.MIN_VALUE + 1L);
+        LocalDate latest = LocalDate.ofEpochDay(Integer.MAX_VALUE);
+        CrptApi.ProductBatch batch = new CrptApi.ProductBatch();
+
+        batch.add(product(earliest, latest));
+        batch.add(product(null, null));
+
+        assertEquals(earliest, batch.getCertificateDocumentDate(0));
+        assertEquals(latest, batch.getProductionDate(0));
+        assertNull(batch.getCertificateDocumentDate(1));
+        assertNull(batch.getProductionDate(1));
+    }
+
+    @Test
+    void datesOutsideTheColumnAreRejected() {
+        CrptApi.ProductBatch batch = new CrptApi.ProductBatch();
+
+        assertThrows(IllegalArgumentException.class, () -> batch.add(product(null, LocalDate.MAX)));
+        assertThrows(IllegalArgumentException.class, () -> batch.add(product(LocalDate.MIN, null)));
+        //would otherwise read back as null
+        assertThrows(IllegalArgumentException.class, () -> batch.add(product(LocalDate.ofEpochDay(Integer.MIN_VALUE), null)));
+
+        assertEquals(0, batch.size());
+        assertEquals(0, batch.getDictionarySize());
+    }
+
+    private static CrptApi.Product product(LocalDate certificateDocumentDate, LocalDate productionDate) {
+        return new CrptApi.Product("CONFORMITY_CERTIFICATE", certificateDocumentDate, "1", "7700000000", "7700000000",
+                productionDate, "6401", "uit", null);
+    }
+}
@@ -0,0 +1,102 @@
+package com.test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.util.Timer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProductFeedIngestorTest {
+
+    private static final String ROW = "{\"owner_inn\":\"7700000000\",\"producer_inn\":\"7800000000\",\"production_date\":\"2024-03-15\",\"tnved_code\":\"6401\"}";
+
+    private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+    private final Timer timer = new Timer(true);
+    private final AtomicInteger received = new AtomicInteger();
+    private HttpServer server;
+    private CrptApi crptApi;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            received.incrementAndGet();
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+        CrptApi.Configuration configuration = new CrptApi.Configuration();
+        configuration.setPushToSalesProductMadeInRussiaUri(URI.create("http://localhost:" + server.getAddress().getPort() + "/"));
+        crptApi = new CrptApi(TimeUnit.SECONDS, 1000, HttpClient.newHttpClient(), objectMapper, timer, configuration);
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+        timer.cancel();
+    }
+
+    @Test
+    void malformedLineIsRejectedAndTheRestIsSent() throws Exception {
+        String feed = String.join("\n", ROW, ROW, ROW, "{\"owner_inn\": broken", ROW, "{\"owner_inn\":\"7700000000\"}") + "\n";
+        CrptApi.ProductFeedIngestor ingestor = new CrptApi.ProductFeedIngestor(crptApi, 2, 1);
+
+        CrptApi.ProductFeedIngestor.Result result = ingestor.ingestNdjson(
+                new ByteArrayInputStream(feed.getBytes(StandardCharsets.UTF_8)), new CrptApi.ProductMadeInRussiaToSendInSalesDocument(), "token");
+
+        assertEquals(4, result.getRowsAccepted());
+        assertEquals(2, result.getRowsRejected());
+        assertTrue(result.getRejections().get(0).startsWith("line 4: "));
+        assertEquals("line 6: missing producer_inn", result.getRejections().get(1));
+        assertEquals(2, result.getDocumentsAccepted());
+        assertEquals(2, received.get());
+    }
+
+    @Test
+    void csvRowsAreValidatedAndChunked() throws Exception {
+        String feed = "owner_inn,producer_inn,production_date,tnved_code\n"
+                + "7700000000,7800000000,2024-03-15,6401\n"
+                + "7700000000,7800000000,not a date,6401\n"
+                + "7700000000,7800000000,2024-03-15,6401\n"
+                + "7700000000,7800000000,2024-03-15,6401\n";
+        CrptApi.ProductFeedIngestor ingestor = new CrptApi.ProductFeedIngestor(crptApi, 2, 1);
+
+        CrptApi.ProductFeedIngestor.Result result = ingestor.ingestCsv(
+                new ByteArrayInputStream(feed.getBytes(StandardCharsets.UTF_8)), new CrptApi.ProductMadeInRussiaToSendInSalesDocument(), "token");
+
+        assertEquals(3, result.getRowsAccepted());
+        assertEquals(1, result.getRowsRejected());
+        assertEquals(2, result.getDocumentsAccepted());
+    }
+
+    @Test
+    void chunksOfOneHeaderAreAllSentWithDeduplication() throws Exception {
+        CrptApi.Configuration configuration = new CrptApi.Configuration();
+        configuration.setPushToSalesProductMadeInRussiaUri(URI.create("http://localhost:" + server.getAddress().getPort() + "/"));
+        configuration.setDeduplicationCache(new CrptApi.DeduplicationCache(100, 1, TimeUnit.MINUTES));
+        CrptApi deduplicating = new CrptApi(TimeUnit.SECONDS, 1000, HttpClient.newHttpClient(), objectMapper, timer, configuration);
+        CrptApi.ProductMadeInRussiaToSendInSalesDocument header = new CrptApi.ProductMadeInRussiaToSendInSalesDocument();
+        header.setDocumentId("doc-1");
+        String feed = String.join("\n", ROW, ROW.replace("6401", "6402"), ROW.replace("6401", "6403"), ROW.replace("6401", "6404")) + "\n";
+
+        CrptApi.ProductFeedIngestor.Result result = new CrptApi.ProductFeedIngestor(deduplicating, 1, 1).ingestNdjson(
+                new ByteArrayInputStream(feed.getBytes(StandardCharsets.UTF_8)), header, "token");
+
+        assertEquals(4, result.getDocumentsAccepted());
+        assertEquals(4, received.get());
+    }
+}
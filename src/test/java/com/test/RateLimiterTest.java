@@ -0,0 +1,120 @@
+package com.test;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Timer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RateLimiterTest {
+
+    private final Timer timer = new Timer(true);
+
+    @AfterEach
+    void tearDown() {
+        timer.cancel();
+    }
+
+    @Test
+    void fixedWindowGrantsUpToTheLimit() {
+        CrptApi.RateLimiter rateLimiter = new CrptApi.FixedWindowRateLimiter(TimeUnit.DAYS, 3, timer);
+
+        assertTrue(rateLimiter.tryAcquire());
+        assertTrue(rateLimiter.tryAcquire());
+        assertTrue(rateLimiter.tryAcquire());
+        assertFalse(rateLimiter.tryAcquire());
+    }
+
+    @Test
+    void refundedPermitIsGrantedAgain() {
+        CrptApi.RateLimiter rateLimiter = new CrptApi.FixedWindowRateLimiter(TimeUnit.DAYS, 1, timer);
+
+        assertTrue(rateLimiter.tryAcquire());
+        assertFalse(rateLimiter.tryAcquire());
+        rateLimiter.refund();
+        assertTrue(rateLimiter.tryAcquire());
+        assertFalse(rateLimiter.tryAcquire());
+    }
+
+    @Test
+    void lateRefundDoesNotGrantAnExtraPermitInALaterWindow() throws Exception {
+        CrptApi.RateLimiter rateLimiter = new CrptApi.FixedWindowRateLimiter(TimeUnit.SECONDS, 1, timer);
+        CompletableFuture<Void> permit = rateLimiter.acquireAsync();
+        assertTrue(permit.isDone());
+
+        Thread.sleep(1000 - System.currentTimeMillis() % 1000 + 50);
+        assertTrue(rateLimiter.tryAcquire());
+        rateLimiter.refund(permit);
+
+        assertFalse(rateLimiter.tryAcquire());
+    }
+
+    @Test
+    void timedOutWaiterDoesNotConsumeQuota() throws Exception {
+        CrptApi.RateLimiter rateLimiter = new CrptApi.FixedWindowRateLimiter(TimeUnit.DAYS, 1, timer);
+        rateLimiter.acquire();
+
+        assertFalse(rateLimiter.tryAcquire(10, TimeUnit.MILLISECONDS));
+        rateLimiter.refund();
+        assertTrue(rateLimiter.tryAcquire());
+    }
+
+    @Test
+    void gcraGrantsBurstThenPaces() {
+        CrptApi.RateLimiter rateLimiter = new CrptApi.GcraRateLimiter(TimeUnit.HOURS, 10, 2);
+
+        assertTrue(rateLimiter.tryAcquire());
+        assertTrue(rateLimiter.tryAcquire());
+        assertFalse(rateLimiter.tryAcquire());
+        rateLimiter.refund();
+        assertTrue(rateLimiter.tryAcquire());
+        assertFalse(rateLimiter.tryAcquire());
+    }
+
+    @Test
+    void permitGrantedAtTheTimeoutIsRefundedAndNotKept() throws Exception {
+        GrantedOnTimeoutRateLimiter rateLimiter = new GrantedOnTimeoutRateLimiter();
+
+        assertFalse(rateLimiter.tryAcquire(1, TimeUnit.MILLISECONDS));
+        assertEquals(1, rateLimiter.refunds.get());
+    }
+
+    @Test
+    void expiredDeadlineFailsWithoutConsumingQuota() {
+        CrptApi.RateLimiter rateLimiter = new CrptApi.FixedWindowRateLimiter(TimeUnit.DAYS, 1, timer);
+
+        CompletableFuture<Void> permit = rateLimiter.acquireAsync(CrptApi.RateLimiter.DEFAULT_PRIORITY, System.currentTimeMillis() - 1);
+
+        assertTrue(permit.isCompletedExceptionally());
+        assertTrue(rateLimiter.tryAcquire());
+    }
+
+    //the permit is completed just as the wait times out, so cancel loses the race
+    private static class GrantedOnTimeoutRateLimiter implements CrptApi.RateLimiter {
+
+        private final AtomicInteger refunds = new AtomicInteger();
+
+        @Override
+        public CompletableFuture<Void> acquireAsync() {
+            return new CompletableFuture<>() {
+                @Override
+                public Void get(long timeout, TimeUnit unit) throws TimeoutException {
+                    complete(null);
+                    throw new TimeoutException();
+                }
+            };
+        }
+
+        @Override
+        public void refund() {
+            refunds.incrementAndGet();
+        }
+    }
+}